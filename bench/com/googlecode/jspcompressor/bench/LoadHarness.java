@@ -0,0 +1,483 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.jsp.tagext.BodyTagSupport;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
+import org.apache.velocity.runtime.resource.util.StringResourceRepository;
+
+import com.googlecode.jspcompressor.cache.OffHeapContentCache;
+import com.googlecode.jspcompressor.taglib.CompressorTagSupport;
+import com.googlecode.jspcompressor.taglib.JspCompressorTag;
+import com.googlecode.jspcompressor.taglib.XmlCompressorTag;
+
+/**
+ * Multi-threaded load harness for the taglib and Velocity entry points. Every scenario is run
+ * at each requested thread count and reports throughput, latency percentiles and allocation rate,
+ * which exposes contention on state shared between request threads.
+ *
+ * <p>Usage: <code>java com.googlecode.jspcompressor.bench.LoadHarness [options]</code>
+ * <p>To view a list of all available parameters please run with <code>--help</code> option.
+ */
+public class LoadHarness {
+
+	private static final int[] DEFAULT_THREADS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+
+	/**
+	 * A single unit of work. Each worker thread gets its own instance,
+	 * mirroring the container handing each request its own tag handler.
+	 */
+	interface Operation {
+		void run() throws Exception;
+	}
+
+	interface Scenario {
+		String getName();
+
+		Operation newOperation() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] threads = DEFAULT_THREADS;
+		int seconds = 5;
+		int warmup = 2;
+		int rows = 200;
+		boolean virtual = false;
+		String only = null;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--threads")) {
+				String[] parts = args[++i].split(",");
+				threads = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					threads[j] = Integer.parseInt(parts[j].trim());
+				}
+			} else if (arg.equals("--seconds")) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--warmup")) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--rows")) {
+				rows = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--virtual")) {
+				virtual = true;
+			} else if (arg.equals("--scenario")) {
+				only = args[++i];
+			} else {
+				printUsage();
+				System.exit(arg.equals("--help") || arg.equals("-h") ? 0 : 1);
+			}
+		}
+
+		if (virtual && !VirtualThreads.isAvailable()) {
+			System.out.println("Virtual threads are not available on this JVM, using platform threads.");
+			virtual = false;
+		}
+
+		List<Scenario> scenarios = scenarios(rows);
+		for (Scenario scenario : scenarios) {
+			if (only != null && !only.equals(scenario.getName())) {
+				continue;
+			}
+
+			System.out.println();
+			System.out.println(scenario.getName() + " (" + rows + " rows, " + (virtual ? "virtual" : "platform") + " threads)");
+			System.out.println(String.format("%8s %12s %10s %10s %10s %10s %10s %12s %10s",
+					"threads", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "alloc MB/s", "KB/op"));
+
+			for (int t : threads) {
+				Result result = run(scenario, t, warmup, seconds, virtual);
+				System.out.println(result);
+			}
+		}
+	}
+
+	private static List<Scenario> scenarios(int rows) throws Exception {
+		final String html = SamplePages.html(rows, false);
+		final String xml = SamplePages.xml(rows);
+		final String unterminated = SamplePages.unterminated(rows);
+		final Map<String, Object> application = new HashMap<String, Object>();
+		final Map<String, Object> offHeapApplication = new HashMap<String, Object>();
+		offHeapApplication.put(CompressorTagSupport.CACHE_ATTRIBUTE, new OffHeapContentCache(1000, 64 * 1024 * 1024));
+
+		final VelocityEngine engine = new VelocityEngine();
+		engine.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+		engine.setProperty("resource.loader", "string");
+		engine.setProperty("string.resource.loader.class", StringResourceLoader.class.getName());
+		engine.setProperty("userdirective", "com.googlecode.jspcompressor.velocity.JspCompressorDirective,"
+				+ "com.googlecode.jspcompressor.velocity.XmlCompressorDirective");
+		engine.init();
+
+		StringResourceRepository repository = StringResourceLoader.getRepository();
+		repository.putStringResource("page.vm", "#compressJsp()" + SamplePages.html(rows, true) + "#end");
+		repository.putStringResource("catalog.vm", "#compressXml()" + xml + "#end");
+		final Template pageTemplate = engine.getTemplate("page.vm");
+		final Template catalogTemplate = engine.getTemplate("catalog.vm");
+
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "taglib-jsp";
+			}
+
+			public Operation newOperation() {
+				JspCompressorTag tag = new JspCompressorTag();
+				tag.setRemoveIntertagSpaces(true);
+				return new TagOperation(tag, application, html);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "taglib-jsp-static";
+			}
+
+			public Operation newOperation() {
+				JspCompressorTag tag = new JspCompressorTag();
+				tag.setRemoveIntertagSpaces(true);
+				tag.setStatic(true);
+				tag.setCacheKey("page");
+				return new TagOperation(tag, application, html);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "taglib-jsp-static-offheap";
+			}
+
+			public Operation newOperation() {
+				JspCompressorTag tag = new JspCompressorTag();
+				tag.setRemoveIntertagSpaces(true);
+				tag.setStatic(true);
+				tag.setCacheKey("page");
+				return new TagOperation(tag, offHeapApplication, html);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "taglib-jsp-unterminated";
+			}
+
+			public Operation newOperation() {
+				JspCompressorTag tag = new JspCompressorTag();
+				tag.setRemoveIntertagSpaces(true);
+				tag.setRemoveQuotes(true);
+				return new TagOperation(tag, application, unterminated);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "taglib-xml";
+			}
+
+			public Operation newOperation() {
+				return new TagOperation(new XmlCompressorTag(), application, xml);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "velocity-jsp";
+			}
+
+			public Operation newOperation() {
+				return new TemplateOperation(pageTemplate);
+			}
+		});
+
+		scenarios.add(new Scenario() {
+			public String getName() {
+				return "velocity-xml";
+			}
+
+			public Operation newOperation() {
+				return new TemplateOperation(catalogTemplate);
+			}
+		});
+
+		return scenarios;
+	}
+
+	/**
+	 * Runs a tag handler through the same lifecycle calls a container would make for a buffered body.
+	 */
+	static class TagOperation implements Operation {
+		private final BodyTagSupport tag;
+		private final MockPageContext pageContext;
+		private final MockBodyContent bodyContent;
+		private final String body;
+
+		TagOperation(BodyTagSupport tag, Map<String, Object> application, String body) {
+			this.tag = tag;
+			this.pageContext = new MockPageContext(application);
+			this.bodyContent = new MockBodyContent(pageContext.getOut());
+			this.body = body;
+		}
+
+		public void run() throws Exception {
+			pageContext.release();
+			pageContext.getMockOut().clear();
+			bodyContent.clear();
+
+			tag.setPageContext(pageContext);
+			if (tag.doStartTag() != BodyTagSupport.SKIP_BODY) {
+				tag.setBodyContent(bodyContent);
+				tag.doInitBody();
+				bodyContent.write(body);
+				tag.doAfterBody();
+			}
+			tag.doEndTag();
+
+			if (pageContext.getMockOut().size() == 0) {
+				throw new IllegalStateException("Tag produced no output");
+			}
+		}
+	}
+
+	static class TemplateOperation implements Operation {
+		private final Template template;
+		private final VelocityContext context = new VelocityContext();
+		private StringWriter writer = new StringWriter();
+
+		TemplateOperation(Template template) {
+			this.template = template;
+			context.put("title", "Sample title");
+		}
+
+		public void run() throws Exception {
+			writer.getBuffer().setLength(0);
+			template.merge(context, writer);
+
+			if (writer.getBuffer().length() == 0) {
+				throw new IllegalStateException("Template produced no output");
+			}
+		}
+	}
+
+	static class Worker implements Runnable {
+		private final Operation operation;
+		private final CountDownLatch start;
+		private final CountDownLatch done;
+		private final long warmupEnd;
+		private final long end;
+
+		long[] latencies = new long[1024];
+		int count = 0;
+		long allocated = -1;
+		Throwable error;
+
+		Worker(Operation operation, CountDownLatch start, CountDownLatch done, long warmupEnd, long end) {
+			this.operation = operation;
+			this.start = start;
+			this.done = done;
+			this.warmupEnd = warmupEnd;
+			this.end = end;
+		}
+
+		public void run() {
+			try {
+				start.await();
+
+				while (System.nanoTime() < warmupEnd) {
+					operation.run();
+				}
+
+				long allocatedBefore = Allocation.current();
+				long now = System.nanoTime();
+				while (now < end) {
+					operation.run();
+					long finished = System.nanoTime();
+					if (count == latencies.length) {
+						latencies = Arrays.copyOf(latencies, count << 1);
+					}
+					latencies[count++] = finished - now;
+					now = finished;
+				}
+				long allocatedAfter = Allocation.current();
+				if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+					allocated = allocatedAfter - allocatedBefore;
+				}
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	static class Result {
+		int threads;
+		long operations;
+		double seconds;
+		long[] latencies;
+		long allocated;
+
+		private double percentile(double p) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+		}
+
+		public String toString() {
+			String allocRate = "n/a";
+			String perOp = "n/a";
+			if (allocated >= 0 && operations > 0) {
+				allocRate = String.format("%.1f", allocated / seconds / (1024 * 1024));
+				perOp = String.format("%.1f", allocated / (double) operations / 1024);
+			}
+			return String.format("%8d %12.0f %10.0f %10.0f %10.0f %10.0f %10.0f %12s %10s",
+					threads, operations / seconds, percentile(50), percentile(90), percentile(99),
+					percentile(99.9), percentile(100), allocRate, perOp);
+		}
+	}
+
+	private static Result run(Scenario scenario, int threads, int warmup, int seconds, boolean virtual) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+
+		long begin = System.nanoTime() + 100000000L;
+		long warmupEnd = begin + warmup * 1000000000L;
+		long end = warmupEnd + seconds * 1000000000L;
+
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(scenario.newOperation(), start, done, warmupEnd, end);
+			Thread thread = virtual ? VirtualThreads.unstarted(workers[i]) : new Thread(workers[i], scenario.getName() + "-" + i);
+			thread.start();
+		}
+
+		start.countDown();
+		done.await();
+
+		Result result = new Result();
+		result.threads = threads;
+		result.seconds = seconds;
+		result.allocated = 0;
+
+		int total = 0;
+		for (Worker worker : workers) {
+			if (worker.error != null) {
+				throw new RuntimeException("Worker failed in " + scenario.getName(), worker.error);
+			}
+			total += worker.count;
+			if (worker.allocated < 0) {
+				result.allocated = -1;
+			} else if (result.allocated >= 0) {
+				result.allocated += worker.allocated;
+			}
+		}
+
+		long[] latencies = new long[total];
+		int offset = 0;
+		for (Worker worker : workers) {
+			System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+			offset += worker.count;
+		}
+		Arrays.sort(latencies);
+
+		result.operations = total;
+		result.latencies = latencies;
+		return result;
+	}
+
+	/**
+	 * Per-thread allocation counters, available on HotSpot based JVMs only.
+	 */
+	static final class Allocation {
+		private static final com.sun.management.ThreadMXBean bean;
+
+		static {
+			com.sun.management.ThreadMXBean found = null;
+			try {
+				java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+				if (threadBean instanceof com.sun.management.ThreadMXBean) {
+					found = (com.sun.management.ThreadMXBean) threadBean;
+					found.setThreadAllocatedMemoryEnabled(true);
+				}
+			} catch (Throwable t) {
+				found = null;
+			}
+			bean = found;
+		}
+
+		static long current() {
+			return bean == null ? -1 : bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * Looks up the virtual thread builder reflectively so the harness still compiles and runs on older JVMs.
+	 */
+	static final class VirtualThreads {
+		private static final Object builder;
+		private static final Method unstarted;
+
+		static {
+			Object b = null;
+			Method m = null;
+			try {
+				b = Thread.class.getMethod("ofVirtual").invoke(null);
+				m = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			} catch (Exception e) {
+				b = null;
+				m = null;
+			}
+			builder = b;
+			unstarted = m;
+		}
+
+		static boolean isAvailable() {
+			return builder != null;
+		}
+
+		static Thread unstarted(Runnable task) throws Exception {
+			return (Thread) unstarted.invoke(builder, task);
+		}
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage: java com.googlecode.jspcompressor.bench.LoadHarness [options]\n\n"
+				+ "  --threads <n,n,...>         Thread counts to run, default 1,2,4,8,16,32,64,128,256\n"
+				+ "  --seconds <n>               Measured seconds per thread count, default 5\n"
+				+ "  --warmup <n>                Warm-up seconds per thread count, default 2\n"
+				+ "  --rows <n>                  Size of the generated sample page, default 200\n"
+				+ "  --virtual                   Use virtual threads when the JVM supports them\n"
+				+ "  --scenario <name>           Run a single scenario: taglib-jsp,\n"
+				+ "                              taglib-jsp-static, taglib-jsp-static-offheap,\n"
+				+ "                              taglib-jsp-unterminated, taglib-xml,\n"
+				+ "                              velocity-jsp or velocity-xml\n"
+				+ "  -h, --help                  Display this screen\n");
+	}
+}
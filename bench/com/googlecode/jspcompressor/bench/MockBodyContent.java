@@ -0,0 +1,185 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
+
+/**
+ * Minimal in-memory {@link BodyContent} used by the load harness to drive tag handlers
+ * outside of a servlet container. It doubles as the page level <code>JspWriter</code>.
+ */
+public class MockBodyContent extends BodyContent {
+
+	private char[] buffer = new char[8192];
+	private int count = 0;
+
+	public MockBodyContent(JspWriter enclosingWriter) {
+		super(enclosingWriter);
+	}
+
+	/**
+	 * Returns the number of characters currently held in the buffer.
+	 */
+	public int size() {
+		return count;
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int newCount = count + len;
+		if (newCount > buffer.length) {
+			char[] grown = new char[Math.max(buffer.length << 1, newCount)];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		}
+		System.arraycopy(cbuf, off, buffer, count, len);
+		count = newCount;
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		int newCount = count + len;
+		if (newCount > buffer.length) {
+			char[] grown = new char[Math.max(buffer.length << 1, newCount)];
+			System.arraycopy(buffer, 0, grown, 0, count);
+			buffer = grown;
+		}
+		str.getChars(off, off + len, buffer, count);
+		count = newCount;
+	}
+
+	public Reader getReader() {
+		return new CharArrayReader(buffer, 0, count);
+	}
+
+	public String getString() {
+		return new String(buffer, 0, count);
+	}
+
+	public void writeOut(Writer out) throws IOException {
+		out.write(buffer, 0, count);
+	}
+
+	public void clear() throws IOException {
+		count = 0;
+	}
+
+	public void clearBuffer() throws IOException {
+		count = 0;
+	}
+
+	public int getRemaining() {
+		return buffer.length - count;
+	}
+
+	public void newLine() throws IOException {
+		write("\n");
+	}
+
+	public void print(boolean b) throws IOException {
+		write(String.valueOf(b));
+	}
+
+	public void print(char c) throws IOException {
+		write(c);
+	}
+
+	public void print(int i) throws IOException {
+		write(String.valueOf(i));
+	}
+
+	public void print(long l) throws IOException {
+		write(String.valueOf(l));
+	}
+
+	public void print(float f) throws IOException {
+		write(String.valueOf(f));
+	}
+
+	public void print(double d) throws IOException {
+		write(String.valueOf(d));
+	}
+
+	public void print(char[] s) throws IOException {
+		write(s);
+	}
+
+	public void print(String s) throws IOException {
+		write(String.valueOf(s));
+	}
+
+	public void print(Object obj) throws IOException {
+		write(String.valueOf(obj));
+	}
+
+	public void println() throws IOException {
+		newLine();
+	}
+
+	public void println(boolean x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(char x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(int x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(long x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(float x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(double x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(char[] x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(String x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void println(Object x) throws IOException {
+		print(x);
+		newLine();
+	}
+
+	public void flush() throws IOException {
+	}
+
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,214 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.el.ExpressionEvaluator;
+import javax.servlet.jsp.el.VariableResolver;
+import javax.servlet.jsp.tagext.BodyContent;
+
+/**
+ * Minimal {@link PageContext} used by the load harness to drive tag handlers
+ * outside of a servlet container. Only the page and application scopes are backed by maps,
+ * the application scope being shared by every page context created from the same map.
+ * Bodies pushed with {@link #pushBody()} are buffered in {@link MockBodyContent}s.
+ */
+public class MockPageContext extends PageContext {
+
+	private final Map<String, Object> pageScope = new HashMap<String, Object>();
+	private final Map<String, Object> requestScope = new HashMap<String, Object>();
+	private final Map<String, Object> applicationScope;
+	private final MockBodyContent out;
+	private final List<JspWriter> writers = new ArrayList<JspWriter>();
+
+	public MockPageContext(Map<String, Object> applicationScope) {
+		this.applicationScope = applicationScope;
+		this.out = new MockBodyContent(null);
+		writers.add(out);
+	}
+
+	/**
+	 * Returns the page level writer as a {@link MockBodyContent} so callers can inspect and reset it.
+	 */
+	public MockBodyContent getMockOut() {
+		return out;
+	}
+
+	public JspWriter getOut() {
+		return writers.get(writers.size() - 1);
+	}
+
+	public BodyContent pushBody() {
+		MockBodyContent body = new MockBodyContent(getOut());
+		writers.add(body);
+		return body;
+	}
+
+	public JspWriter popBody() {
+		writers.remove(writers.size() - 1);
+		return getOut();
+	}
+
+	private Map<String, Object> scope(int scope) {
+		switch (scope) {
+			case PAGE_SCOPE:
+				return pageScope;
+			case REQUEST_SCOPE:
+				return requestScope;
+			case APPLICATION_SCOPE:
+				return applicationScope;
+			default:
+				return Collections.<String, Object>emptyMap();
+		}
+	}
+
+	public void setAttribute(String name, Object value) {
+		setAttribute(name, value, PAGE_SCOPE);
+	}
+
+	public void setAttribute(String name, Object value, int scope) {
+		if (scope == APPLICATION_SCOPE) {
+			synchronized (applicationScope) {
+				applicationScope.put(name, value);
+			}
+		} else {
+			scope(scope).put(name, value);
+		}
+	}
+
+	public Object getAttribute(String name) {
+		return pageScope.get(name);
+	}
+
+	public Object getAttribute(String name, int scope) {
+		if (scope == APPLICATION_SCOPE) {
+			synchronized (applicationScope) {
+				return applicationScope.get(name);
+			}
+		}
+		return scope(scope).get(name);
+	}
+
+	public Object findAttribute(String name) {
+		Object value = getAttribute(name, PAGE_SCOPE);
+		return value != null ? value : getAttribute(name, APPLICATION_SCOPE);
+	}
+
+	public void removeAttribute(String name) {
+		removeAttribute(name, PAGE_SCOPE);
+		removeAttribute(name, APPLICATION_SCOPE);
+	}
+
+	public void removeAttribute(String name, int scope) {
+		if (scope == APPLICATION_SCOPE) {
+			synchronized (applicationScope) {
+				applicationScope.remove(name);
+			}
+		} else {
+			scope(scope).remove(name);
+		}
+	}
+
+	public int getAttributesScope(String name) {
+		if (getAttribute(name, PAGE_SCOPE) != null) {
+			return PAGE_SCOPE;
+		}
+		return getAttribute(name, APPLICATION_SCOPE) != null ? APPLICATION_SCOPE : 0;
+	}
+
+	public Enumeration<String> getAttributeNamesInScope(int scope) {
+		return Collections.enumeration(scope(scope).keySet());
+	}
+
+	public void initialize(Servlet servlet, ServletRequest request, ServletResponse response, String errorPageURL,
+			boolean needsSession, int bufferSize, boolean autoFlush) {
+	}
+
+	public void release() {
+		pageScope.clear();
+		requestScope.clear();
+		writers.subList(1, writers.size()).clear();
+	}
+
+	public HttpSession getSession() {
+		return null;
+	}
+
+	public Object getPage() {
+		return null;
+	}
+
+	public ServletRequest getRequest() {
+		return null;
+	}
+
+	public ServletResponse getResponse() {
+		return null;
+	}
+
+	public Exception getException() {
+		return null;
+	}
+
+	public ServletConfig getServletConfig() {
+		return null;
+	}
+
+	public ServletContext getServletContext() {
+		return null;
+	}
+
+	public void forward(String relativeUrlPath) {
+		throw new UnsupportedOperationException("forward");
+	}
+
+	public void include(String relativeUrlPath) {
+		throw new UnsupportedOperationException("include");
+	}
+
+	public void include(String relativeUrlPath, boolean flush) {
+		throw new UnsupportedOperationException("include");
+	}
+
+	public void handlePageException(Exception e) {
+		throw new RuntimeException(e);
+	}
+
+	public void handlePageException(Throwable t) {
+		throw new RuntimeException(t);
+	}
+
+	public ExpressionEvaluator getExpressionEvaluator() {
+		return null;
+	}
+
+	public VariableResolver getVariableResolver() {
+		return null;
+	}
+}
@@ -0,0 +1,110 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Generates synthetic pages for the benchmarks. Pages mix markup, comments, 
+ * preserved blocks and scripts in roughly the proportions of a typical JSP page.
+ */
+public final class SamplePages {
+
+	private SamplePages() {
+	}
+
+	/**
+	 * Returns an HTML page made of <code>rows</code> repeated table rows.
+	 * 
+	 * @param rows number of repeated content rows
+	 * @param velocity if <code>true</code> a <code>$title</code> reference is emitted in every row
+	 * so that Velocity templates contain dynamic content.
+	 */
+	public static String html(int rows, boolean velocity) {
+		StringBuilder sb = new StringBuilder(rows * 400 + 2048);
+		sb.append("<!DOCTYPE html>\n<html>\n  <head>\n    <title>  Sample   page  </title>\n");
+		sb.append("    <!-- page level comment -->\n");
+		sb.append("    <style type=\"text/css\">\n      body {  margin : 0px;  padding: 0px; }\n");
+		sb.append("      .row   { color : #ff0000; }\n    </style>\n");
+		sb.append("    <script type=\"text/javascript\">\n      // <!--\n");
+		sb.append("      function toggle( id ) {\n        var el = document.getElementById( id );\n");
+		sb.append("        el.style.display = el.style.display == 'none' ? '' : 'none';\n      }\n      // -->\n");
+		sb.append("    </script>\n  </head>\n  <body>\n    <table   class=\"grid\"   id=\"main\">\n");
+		for (int i = 0; i < rows; i++) {
+			sb.append("      <tr class=\"row\">\n        <td   align=\"left\">   row ").append(i).append("   </td>\n");
+			sb.append("        <td>\n          <a href=\"#\" onclick=\"toggle('r").append(i).append("')\">   toggle   </a>\n        </td>\n");
+			if (velocity) {
+				sb.append("        <td>   $title   </td>\n");
+			} else {
+				sb.append("        <td>   title   </td>\n");
+			}
+			sb.append("      </tr>\n");
+			if (i % 10 == 0) {
+				sb.append("      <!--   comment ").append(i).append("   -->\n");
+			}
+		}
+		sb.append("    </table>\n    <pre>\n   preformatted    text\n     stays   as is\n    </pre>\n");
+		sb.append("    <textarea  name=\"notes\">\n   keep   this\n    </textarea>\n  </body>\n</html>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the HTML page from {@link #html(int, boolean)} followed by <code>rows</code> lines of
+	 * comments, scriptlets, tags and attributes that are never closed. Compression time should
+	 * grow linearly with the number of rows; rescanning the rest of the page from every unterminated
+	 * construct makes it grow quadratically instead.
+	 */
+	public static String unterminated(int rows) {
+		StringBuilder sb = new StringBuilder(html(rows, false));
+		for (int i = 0; i < rows; i++) {
+			sb.append("    <!-- stray comment ").append(i).append("\n");
+			sb.append("    <% stray scriptlet ").append(i).append("\n");
+			sb.append("    <script   <pre   <textarea   <style\n");
+			sb.append("    <div   id=\"r").append(i).append("\"   class='stray'   \n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a generated report made of <code>rows</code> paragraphs of plain text, with long runs
+	 * of text between tags and little whitespace to remove.
+	 */
+	public static String report(int rows) {
+		StringBuilder sb = new StringBuilder(rows * 700 + 256);
+		sb.append("<html>\n<body>\n  <h1>Report</h1>\n");
+		for (int i = 0; i < rows; i++) {
+			sb.append("  <p id=\"p").append(i).append("\">Entry ").append(i);
+			sb.append(": the quick brown fox jumps over the lazy dog, while the generated report keeps");
+			sb.append(" describing every single record in full sentences so that paragraphs are long and");
+			sb.append(" tags are few. Totals, averages and remarks follow the description of each record,");
+			sb.append(" along with a note on where the figures came from and when they were last updated,");
+			sb.append(" which is how generated pages tend to look once the data gets large.</p>\n");
+		}
+		sb.append("</body>\n</html>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns an XML document made of <code>items</code> repeated elements.
+	 */
+	public static String xml(int items) {
+		StringBuilder sb = new StringBuilder(items * 120 + 256);
+		sb.append("<?xml version=\"1.0\"?>\n<catalog>\n  <!-- catalog -->\n");
+		for (int i = 0; i < items; i++) {
+			sb.append("  <item id=\"").append(i).append("\">\n    <name>  item ").append(i).append("  </name>\n");
+			sb.append("    <description><![CDATA[  raw   <text>  ]]></description>\n  </item>\n");
+		}
+		sb.append("</catalog>\n");
+		return sb.toString();
+	}
+}
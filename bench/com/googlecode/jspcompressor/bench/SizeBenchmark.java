@@ -0,0 +1,151 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.compressor.Utf8Compressor;
+import com.googlecode.jspcompressor.compressor.XmlCompressor;
+
+/**
+ * Single-threaded benchmark of the compressors by input size. Pages range from a few kilobytes
+ * to several megabytes, which shows how the cost of scanning grows with the size of generated
+ * HTML and XML. Run it before and after a change to the scanning code to compare. With
+ * <code>--utf8</code> pages are compressed from UTF-8 bytes to UTF-8 bytes, once decoding and encoding
+ * them around {@link Compressor#compress(String)} and once with {@link Utf8Compressor#compress(ByteBuffer)}.
+ *
+ * <p>Usage: <code>java com.googlecode.jspcompressor.bench.SizeBenchmark [options]</code>
+ * <p>To view a list of all available parameters please run with <code>--help</code> option.
+ */
+public class SizeBenchmark {
+
+	private static final int[] DEFAULT_SIZES = {4, 64, 1024, 8192};
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = DEFAULT_SIZES;
+		int seconds = 3;
+		int warmup = 2;
+		boolean utf8 = false;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--sizes")) {
+				String[] parts = args[++i].split(",");
+				sizes = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					sizes[j] = Integer.parseInt(parts[j].trim());
+				}
+			} else if (arg.equals("--seconds")) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--warmup")) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--utf8")) {
+				utf8 = true;
+			} else {
+				printUsage();
+				System.exit(arg.equals("--help") || arg.equals("-h") ? 0 : 1);
+			}
+		}
+
+		JspCompressor html = new JspCompressor();
+		html.setRemoveIntertagSpaces(true);
+		XmlCompressor xml = new XmlCompressor();
+
+		System.out.println(String.format("%-12s %10s %10s %12s %10s", "document", "size KB", "ops/s", "us/op", "MB/s"));
+		for (int size : sizes) {
+			run("html", html, page("html", size * 1024), warmup, seconds, utf8);
+			run("report", html, page("report", size * 1024), warmup, seconds, utf8);
+			run("xml", xml, page("xml", size * 1024), warmup, seconds, utf8);
+		}
+	}
+
+	private static void run(String document, final Utf8Compressor compressor, final String page, int warmup, int seconds, boolean utf8) throws Exception {
+		if (!utf8) {
+			measure(document, page.length(), new Operation() {
+				public void run() throws Exception {
+					compressor.compress(page);
+				}
+			}, warmup, seconds);
+			return;
+		}
+
+		final byte[] bytes = page.getBytes("UTF-8");
+		measure(document + "/dec", bytes.length, new Operation() {
+			public void run() throws Exception {
+				compressor.compress(new String(bytes, "UTF-8")).getBytes("UTF-8");
+			}
+		}, warmup, seconds);
+		measure(document + "/utf8", bytes.length, new Operation() {
+			public void run() throws Exception {
+				compressor.compress(ByteBuffer.wrap(bytes));
+			}
+		}, warmup, seconds);
+	}
+
+	private static String page(String document, int size) {
+		int rows = 1;
+		String page = generate(document, rows);
+		while (page.length() < size) {
+			rows = Math.max(rows + 1, (int) ((long) rows * size / page.length()));
+			page = generate(document, rows);
+		}
+		return page;
+	}
+
+	private static String generate(String document, int rows) {
+		if (document.equals("html")) {
+			return SamplePages.html(rows, false);
+		} else if (document.equals("report")) {
+			return SamplePages.report(rows);
+		}
+		return SamplePages.xml(rows);
+	}
+
+	private static void measure(String document, int length, Operation operation, int warmup, int seconds) throws Exception {
+		long warmupEnd = System.nanoTime() + warmup * 1000000000L;
+		while (System.nanoTime() < warmupEnd) {
+			operation.run();
+		}
+
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		long now = start;
+		while (now < end) {
+			operation.run();
+			operations++;
+			now = System.nanoTime();
+		}
+
+		double elapsed = (now - start) / 1e9;
+		System.out.println(String.format("%-12s %10d %10.0f %12.1f %10.1f", document, length / 1024,
+				operations / elapsed, elapsed * 1e6 / operations, operations * (double) length / elapsed / (1024 * 1024)));
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage: java com.googlecode.jspcompressor.bench.SizeBenchmark [options]\n\n"
+				+ "  --sizes <n,n,...>           Page sizes in KB, default 4,64,1024,8192\n"
+				+ "  --seconds <n>               Measured seconds per page, default 3\n"
+				+ "  --warmup <n>                Warm-up seconds per page, default 2\n"
+				+ "  --utf8                      Compress UTF-8 bytes, decoded and as bytes\n"
+				+ "  -h, --help                  Display this screen\n");
+	}
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,123 @@
+package com.googlecode.jspcompressor.bench;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.IterationTag;
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.taglib.JspCompressorTag;
+
+/**
+ * Checks the compressor tags against the calls a JSP page compiled by Jasper makes: template text is
+ * written to the page's local writer, which is the body content returned by {@link PageContext#pushBody()}
+ * for buffered bodies, while nested tags write to {@link PageContext#getOut()}. The output must hold
+ * template text and nested tag output compressed in page order, with and without streaming.
+ *
+ * <p>Usage: <code>java com.googlecode.jspcompressor.bench.TagSequenceCheck</code>, exits with
+ * <code>1</code> if a check fails.
+ */
+public class TagSequenceCheck {
+
+	private static final String[] TEMPLATE = {
+		"<html>\n  <head>\n    <title>Check</title>\n  </head><body>\n    <p>  before  </p>\n",
+		"\n    <p>  after  </p>\n  </body>\n</html>\n"
+	};
+
+	private static final String NESTED = "<div>   nested   tag   </div>";
+
+	public static void main(String[] args) throws Exception {
+		String body = TEMPLATE[0] + NESTED + TEMPLATE[1];
+		String expected = new JspCompressor().compress(body);
+		boolean failed = false;
+
+		for (int i = 0; i < 2; i++) {
+			boolean streaming = i == 1;
+			JspCompressorTag tag = new JspCompressorTag();
+			tag.setStreaming(streaming);
+
+			MockPageContext pageContext = new MockPageContext(new HashMap<String, Object>());
+			run(tag, pageContext);
+			String output = pageContext.getMockOut().getString();
+
+			boolean ok = output.equals(expected) && pageContext.getOut() == pageContext.getMockOut();
+			System.out.println((ok ? "ok     " : "FAILED ") + "streaming=" + streaming + ": " + output);
+			failed |= !ok;
+		}
+
+		if (failed) {
+			System.out.println("expected: " + expected);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the tag the way Jasper's generated code does, with a nested tag between two blocks of template text.
+	 */
+	private static void run(JspCompressorTag tag, PageContext pageContext) throws Exception {
+		JspWriter out = pageContext.getOut();
+		tag.setPageContext(pageContext);
+		tag.setParent(null);
+
+		int eval = tag.doStartTag();
+		if (eval != Tag.SKIP_BODY) {
+			if (eval != Tag.EVAL_BODY_INCLUDE) {
+				out = pageContext.pushBody();
+				tag.setBodyContent((BodyContent) out);
+				tag.doInitBody();
+			}
+			do {
+				out.write(TEMPLATE[0]);
+
+				NestedTag nested = new NestedTag();
+				nested.setPageContext(pageContext);
+				nested.setParent(tag);
+				nested.doStartTag();
+				nested.doEndTag();
+
+				out.write(TEMPLATE[1]);
+			} while (tag.doAfterBody() == IterationTag.EVAL_BODY_AGAIN);
+			if (eval != Tag.EVAL_BODY_INCLUDE) {
+				out = pageContext.popBody();
+			}
+		}
+		tag.doEndTag();
+	}
+
+	/**
+	 * Tag writing its output through {@link PageContext#getOut()}, as custom tags do.
+	 */
+	@SuppressWarnings("serial")
+	static class NestedTag extends TagSupport {
+
+		@Override
+		public int doEndTag() throws JspException {
+			try {
+				pageContext.getOut().write(NESTED);
+			} catch (IOException e) {
+				throw new JspException(e.getMessage());
+			}
+			return EVAL_PAGE;
+		}
+	}
+}
@@ -20,14 +20,18 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import com.googlecode.jspcompressor.compressor.Compressor;
 import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.compressor.Utf8Compressor;
 import com.googlecode.jspcompressor.compressor.XmlCompressor;
 
 /**
@@ -58,12 +62,14 @@ public class CmdLineCompressor {
 		CmdLineParser.Option compressCssOpt = parser.addBooleanOption("compress-css");
         CmdLineParser.Option removeJspComments = parser.addBooleanOption("remove-jsp-comments");
         CmdLineParser.Option preserveStrutsFormComments = parser.addBooleanOption("preserve-struts-comments");
+        CmdLineParser.Option preserveTagsOpt = parser.addStringOption("preserve-tags");
 
 		CmdLineParser.Option nomungeOpt = parser.addBooleanOption("nomunge");
 		CmdLineParser.Option linebreakOpt = parser.addStringOption("line-break");
 		CmdLineParser.Option preserveSemiOpt = parser.addBooleanOption("preserve-semi");
 		CmdLineParser.Option disableOptimizationsOpt = parser.addBooleanOption("disable-optimizations");
 
+		InputStream inputStream = null;
 		Reader in = null;
 		Writer out = null;
 
@@ -104,7 +110,7 @@ public class CmdLineCompressor {
 					type = "html";
 				}
 
-				in = new InputStreamReader(System.in, charset);
+				inputStream = System.in;
 
 			} else {
 
@@ -122,7 +128,7 @@ public class CmdLineCompressor {
 					type = "html";
 				}
 
-				in = new InputStreamReader(new FileInputStream(inputFilename), charset);
+				inputStream = new FileInputStream(inputFilename);
 			}
 
 			//line break
@@ -160,6 +166,16 @@ public class CmdLineCompressor {
                 jspCompressor.setSkipStrutsFormComments(preserveStrutsFormComments != null);
                 jspCompressor.setRemoveJspComments(removeJspComments != null);
 
+                String preserveTags = (String) parser.getOptionValue(preserveTagsOpt);
+                if (preserveTags != null) {
+                    try {
+                        jspCompressor.setPreserveTags(new String[] {preserveTags});
+                    } catch (IllegalArgumentException e) {
+                        printUsage();
+                        System.exit(1);
+                    }
+                }
+
 				compressor = jspCompressor;
 
 			} else {
@@ -172,6 +188,18 @@ public class CmdLineCompressor {
 
 			}
 
+			//UTF-8 is compressed as bytes, without decoding it
+			if (compressor instanceof Utf8Compressor && Charset.forName(charset).name().equals("UTF-8")) {
+				try {
+					compressUtf8((Utf8Compressor) compressor, inputStream, outputFilename);
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			in = new InputStreamReader(inputStream, charset);
 			BufferedReader input =  new BufferedReader(in);
 			
 			//compress
@@ -251,6 +279,79 @@ public class CmdLineCompressor {
 		System.exit(0);
 	}
 
+	/**
+	 * Compresses UTF-8 input as bytes. Lines end with the line separator of the platform,
+	 * like they do when the input is read line by line.
+	 */
+	private static void compressUtf8(Utf8Compressor compressor, InputStream inputStream, String outputFilename) throws Exception {
+		ByteBuffer source;
+		try {
+			source = readLines(inputStream);
+		} finally {
+			// Close the input stream first, and then open the output stream,
+			// in case the output file should override the input file.
+			inputStream.close();
+		}
+
+		ByteBuffer result = compressor.compress(source);
+
+		OutputStream output = outputFilename == null ? System.out : new FileOutputStream(outputFilename);
+		try {
+			output.write(result.array(), result.arrayOffset() + result.position(), result.remaining());
+			output.flush();
+		} finally {
+			if (outputFilename != null) {
+				output.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads all bytes, replacing each line terminator with the line separator of the platform and
+	 * ending the last line with one, like reading line by line and appending the separator does.
+	 */
+	private static ByteBuffer readLines(InputStream inputStream) throws IOException {
+		byte[] bytes = new byte[8192];
+		int length = 0;
+		int read;
+		while ((read = inputStream.read(bytes, length, bytes.length - length)) != -1) {
+			length += read;
+			if (length == bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+		}
+
+		byte[] separator = System.getProperty("line.separator").getBytes("UTF-8");
+		int lines = 0;
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] == '\n' || bytes[i] == '\r') {
+				lines++;
+			}
+		}
+
+		byte[] result = new byte[length + (lines + 1) * separator.length];
+		int resultLength = 0;
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && bytes[end] != '\n' && bytes[end] != '\r') {
+				end++;
+			}
+			System.arraycopy(bytes, start, result, resultLength, end - start);
+			resultLength += end - start;
+			System.arraycopy(separator, 0, result, resultLength, separator.length);
+			resultLength += separator.length;
+
+			if (end + 1 < length && bytes[end] == '\r' && bytes[end + 1] == '\n') {
+				end++;
+			}
+			start = end + 1;
+		}
+		return ByteBuffer.wrap(result, 0, resultLength);
+	}
+
 	private static void printUsage() {
 		System.out.println("Usage: java -jar jspcompressor.jar [options] [input file]\n\n"
 
@@ -263,7 +364,8 @@ public class CmdLineCompressor {
 						+ "  -h, --help                  Display this screen\n\n"
                         + "JSP Options:\n"
                         + "  --remove-jsp-comments       Remove JSP comments\n"
-                        + "  --preserve-struts-comments  Preserve <html:form> starting and ending tag comments.\n\n"
+                        + "  --preserve-struts-comments  Preserve <html:form> starting and ending tag comments.\n"
+                        + "  --preserve-tags <tags>      Preserve the content of these comma separated tags\n\n"
 
 						+ "XML Options:\n"
 						+ "  --preserve-comments         Preserve comments\n"
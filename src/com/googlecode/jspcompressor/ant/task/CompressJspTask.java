@@ -21,8 +21,11 @@ import org.apache.tools.ant.Task;
 import org.apache.tools.ant.types.FileSet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Ant Task that wraps the htmlcompressor library written by Sergiy Kovalchuck
@@ -40,6 +43,13 @@ public class CompressJspTask extends Task {
     private boolean debugMode = false;
     private boolean enabled = true;
     private boolean failOnError = false;
+    private boolean precompressTags = false;
+
+    private static final String TAGLIB_URI = "http://github.com/rbieber/jspcompressor";
+    private static final Pattern taglibPattern = Pattern.compile("<%@\\s*taglib\\s[^%]*?%>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern prefixPattern = Pattern.compile("prefix\\s*=\\s*[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+    private static final Pattern enabledPattern = Pattern.compile("\\senabled\\s*=", Pattern.CASE_INSENSITIVE);
+    private static final Pattern quotedValuePattern = Pattern.compile("<%.*?%>|\"(?:<%.*?%>|[^\"])*\"|'(?:<%.*?%>|[^'])*'", Pattern.DOTALL);
 
     private JspCompressor compressor = new JspCompressor();
 
@@ -92,7 +102,14 @@ public class CompressJspTask extends Task {
                     if (debugMode) {
                         System.out.println("Processing file: " + sourceFileName + "\n");
                     }
-                    writeFile(d.toString(), compressHTML(readFile(f.toString(), null)), null);
+                    ByteBuffer compressed = compressHTML(readFile(f));
+
+                    if (precompressTags) {
+                        String jsp = new String(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining(), "utf-8");
+                        writeFile(d.toString(), disableRuntimeCompression(jsp), null);
+                    } else {
+                        writeFile(d, compressed);
+                    }
 
                 } catch (Exception myException) {
                     throw new BuildException(myException.getMessage() + " while processing file " + sourceFileName);
@@ -107,11 +124,11 @@ public class CompressJspTask extends Task {
      * Function called by the main execute function that does the actual compression of HTML
      * using the HTMLCompressor class.
      *
-     * @param buffer This is the full HTML buffer to compress.
+     * @param buffer This is the full HTML buffer to compress, encoded in UTF-8.
      * @return Compressed html buffer
      */
-    private String compressHTML(String buffer) {
-        String newHTML = null;
+    private ByteBuffer compressHTML(ByteBuffer buffer) {
+        ByteBuffer newHTML = null;
 
         compressor.setEnabled(enabled); //if false all compression is off (default is true)
         compressor.setRemoveJspComments(removeJspComments);
@@ -141,56 +158,123 @@ public class CompressJspTask extends Task {
         return (newHTML);
     }
 
-    private String readFile(String path, String encoding) {
-        String finalString = null;
-        try {
-            // summary: reads a file and returns a string
-            if (encoding == null) {
-                encoding = "utf-8";
+    /**
+     * Adds <code>enabled="false"</code> to every &lt;compress:jsp> start tag that does not set
+     * <code>enabled</code> itself. The static template text of these tags has just been compressed, so
+     * the tag would otherwise compress it again on every request. Attribute values are matched as a whole,
+     * so they may contain <code>></code>, and tags inside JSP or HTML comments are left alone.
+     *
+     * @param jsp compressed JSP source
+     * @return JSP source with runtime compression disabled on jsp compressor tags
+     */
+    private String disableRuntimeCompression(String jsp) {
+        Matcher taglibMatcher = taglibPattern.matcher(jsp);
+
+        while (taglibMatcher.find()) {
+            String directive = taglibMatcher.group(0);
+            if (directive.indexOf(TAGLIB_URI) == -1) {
+                continue;
             }
 
-            File file = new File(path);
+            Matcher prefixMatcher = prefixPattern.matcher(directive);
+            if (!prefixMatcher.find()) {
+                continue;
+            }
 
-            BufferedReader input = new java.io.BufferedReader(new InputStreamReader(new FileInputStream(file), encoding));
+            Pattern tagPattern = Pattern.compile("<%--.*?--%>|<!--.*?-->|<" + Pattern.quote(prefixMatcher.group(1))
+                    + ":jsp(?=[\\s/>])((?:<%.*?%>|[^>\"']|\"(?:<%.*?%>|[^\"])*\"|'(?:<%.*?%>|[^'])*')*?)(/?>)", Pattern.DOTALL);
+            Matcher tagMatcher = tagPattern.matcher(jsp);
+            StringBuffer sb = new StringBuffer();
+
+            while (tagMatcher.find()) {
+                String replacement = tagMatcher.group(0);
+                //comments have no attributes group, values may mention enabled themselves
+                if (tagMatcher.group(1) != null
+                        && !enabledPattern.matcher(quotedValuePattern.matcher(tagMatcher.group(1)).replaceAll("\"\"")).find()) {
+                    replacement = replacement.substring(0, replacement.length() - tagMatcher.group(2).length())
+                            + " enabled=\"false\"" + tagMatcher.group(2);
+                }
+                tagMatcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+            }
+            tagMatcher.appendTail(sb);
+            jsp = sb.toString();
+        }
 
+        return (jsp);
+    }
+
+    /**
+     * Reads a UTF-8 file as bytes. A leading byte order mark is dropped and every line ends with the
+     * line separator of the platform, like reading the file line by line and appending the separator does.
+     */
+    private ByteBuffer readFile(File file) {
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int length = 0;
+            InputStream input = new FileInputStream(file);
             try {
-                StringBuffer stringBuffer = new StringBuffer();
-                String line = input.readLine();
-                String lineSeparator = System.getProperty("line.separator");
-
-                // Byte Order Mark (BOM) - The Unicode Standard, version 3.0, page
-                // 324
-                // http://www.unicode.org/faq/utf_bom.html
-
-                // Note that when we use utf-8, the BOM should appear as "EF BB BF",
-                // but it doesn't due to this bug in the JDK:
-                // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4508058
-                if (line != null && line.length() > 0 && line.charAt(0) == 0xfeff) {
-                    // Eat the BOM, since we've already found the encoding on this
-                    // file,
-                    // and we plan to concatenating this buffer with others; the BOM
-                    // should
-                    // only appear at the top of a file.
-                    line = line.substring(1);
+                int read;
+                while (length < bytes.length && (read = input.read(bytes, length, bytes.length - length)) != -1) {
+                    length += read;
                 }
+            } finally {
+                input.close();
+            }
 
-                while (line != null) {
-                    stringBuffer.append(line);
-                    stringBuffer.append(lineSeparator);
-                    line = input.readLine();
+            // Byte Order Mark (BOM) - The Unicode Standard, version 3.0, page
+            // 324
+            // http://www.unicode.org/faq/utf_bom.html
+
+            // Eat the BOM, since we plan to concatenating this buffer with others; the BOM
+            // should only appear at the top of a file. A file holding just the BOM still has one line.
+            boolean bom = length >= 3 && bytes[0] == (byte) 0xef && bytes[1] == (byte) 0xbb && bytes[2] == (byte) 0xbf;
+            int start = bom ? 3 : 0;
+
+            byte[] lineSeparator = System.getProperty("line.separator").getBytes("utf-8");
+            int lines = 1;
+            for (int i = start; i < length; i++) {
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    lines++;
                 }
+            }
 
-                // Make sure we return a JavaScript string and not a Java string.
-                return stringBuffer.toString(); // String
-            } finally {
-                input.close();
+            byte[] result = new byte[length + lines * lineSeparator.length];
+            int resultLength = 0;
+            while (start < length || (bom && resultLength == 0)) {
+                int end = start;
+                while (end < length && bytes[end] != '\n' && bytes[end] != '\r') {
+                    end++;
+                }
+                System.arraycopy(bytes, start, result, resultLength, end - start);
+                resultLength += end - start;
+                System.arraycopy(lineSeparator, 0, result, resultLength, lineSeparator.length);
+                resultLength += lineSeparator.length;
+
+                if (end + 1 < length && bytes[end] == '\r' && bytes[end + 1] == '\n') {
+                    end++;
+                }
+                start = end + 1;
             }
+            return ByteBuffer.wrap(result, 0, resultLength);
         } catch (Exception e) {
             // bubble the exception message back up and stop the build.
             throw new BuildException(e.toString());
         }
     }
 
+    private void writeFile(File file, ByteBuffer contents) {
+        try {
+            OutputStream output = new FileOutputStream(file);
+            try {
+                output.write(contents.array(), contents.arrayOffset() + contents.position(), contents.remaining());
+            } finally {
+                output.close();
+            }
+        } catch (Exception e) {
+            // bubble the exception message back up and stop the build.
+            throw new BuildException(e.toString());
+        }
+    }
 
     private void writeFile(String path, String contents, String encoding) {
         String finalString = null;
@@ -267,6 +351,20 @@ public class CompressJspTask extends Task {
         this.compressCSS = compress;
     }
 
+    /**
+     * Sets the custom tags whose content the compressor leaves untouched, like the content of &lt;pre> tags.
+     *
+     * @param tags comma separated list of tag names, such as <code>code,svg,jsp:text</code>
+     * @see JspCompressor#setPreserveTags(String[])
+     */
+    public void setPreserveTags(String tags) {
+        try {
+            compressor.setPreserveTags(new String[] {tags});
+        } catch (IllegalArgumentException e) {
+            throw new BuildException("CompressHTML:  " + e.getMessage());
+        }
+    }
+
     /**
      * Sets the destination directory in which processed files are deposited.
      *
@@ -308,4 +406,16 @@ public class CompressJspTask extends Task {
     public void setFailOnError(boolean enabled) {
         this.failOnError = enabled;
     }
+
+    /**
+     * Sets the property that disables runtime compression of &lt;compress:jsp> tags in the processed files.
+     * Their static template text is compressed at build time along with the rest of the page, so the tags
+     * only need to run if the dynamic content they render must be compressed as well.
+     * Tags that set the <code>enabled</code> attribute themselves are left alone. This is false by default.
+     *
+     * @param precompress true if runtime compression should be disabled on compressor tags, false otherwise.
+     */
+    public void setPrecompressTags(boolean precompress) {
+        this.precompressTags = precompress;
+    }
 }
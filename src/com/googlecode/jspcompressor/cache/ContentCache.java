@@ -0,0 +1,57 @@
+package com.googlecode.jspcompressor.cache;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Interface describing caches of compressed content. Implementations must be safe
+ * for use by concurrent request threads.
+ */
+public interface ContentCache {
+
+	/**
+	 * Returns the cached content for the given key, or <code>null</code> if there is
+	 * no entry or the entry has expired.
+	 *
+	 * @param key cache key
+	 * @return cached content or <code>null</code>
+	 */
+	public abstract String get(String key);
+
+	/**
+	 * Stores content under the given key, replacing any existing entry.
+	 *
+	 * @param key cache key
+	 * @param content compressed content
+	 * @param ttl time to live in milliseconds, or <code>0</code> for entries that never expire
+	 */
+	public abstract void put(String key, String content, long ttl);
+
+	/**
+	 * Removes the entry for the given key, if any.
+	 *
+	 * @param key cache key
+	 */
+	public abstract void remove(String key);
+
+	/**
+	 * Removes all entries.
+	 */
+	public abstract void clear();
+
+	/**
+	 * Returns the number of entries currently held, including expired entries not yet evicted.
+	 */
+	public abstract int size();
+}
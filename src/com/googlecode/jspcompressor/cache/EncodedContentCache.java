@@ -0,0 +1,36 @@
+package com.googlecode.jspcompressor.cache;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Interface describing caches that can write content already encoded in a response charset,
+ * so cache hits are sent as bytes without running a charset encoder on every request.
+ */
+public interface EncodedContentCache extends ContentCache {
+
+	/**
+	 * Writes the cached content for the given key to a stream, encoded in the given charset.
+	 *
+	 * @param key cache key
+	 * @param charset name of the charset to encode the content in
+	 * @param out stream to write to
+	 * @return <code>false</code> if there is no entry or the entry has expired
+	 * @throws IOException if the charset is not supported or writing to the stream fails
+	 */
+	public abstract boolean writeTo(String key, String charset, OutputStream out) throws IOException;
+}
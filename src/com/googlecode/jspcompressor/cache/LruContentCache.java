@@ -0,0 +1,155 @@
+package com.googlecode.jspcompressor.cache;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Heap based {@link ContentCache} bounded by both the number of entries and the total
+ * number of cached characters. The least recently used entries are evicted first.
+ *
+ * <p>Content written with {@link #writeTo(String, String, OutputStream)} is encoded once per charset
+ * and the encoded bytes are kept with the entry for later hits. Encoded bytes count towards the
+ * bound at two bytes per character.
+ */
+public class LruContentCache implements EncodedContentCache {
+
+	private final int maxEntries;
+	private final long maxChars;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long chars = 0;
+
+	private static class Entry {
+		final String content;
+		final long expires;
+
+		//content encoded per charset name, created on first use
+		Map<String, byte[]> encodings;
+		int encodedBytes = 0;
+
+		Entry(String content, long expires) {
+			this.content = content;
+			this.expires = expires;
+		}
+
+		long weight() {
+			return content.length() + (encodedBytes + 1) / 2;
+		}
+	}
+
+	/**
+	 * @param maxEntries maximum number of entries
+	 * @param maxChars maximum number of characters held by all entries together
+	 */
+	public LruContentCache(int maxEntries, long maxChars) {
+		this.maxEntries = maxEntries;
+		this.maxChars = maxChars;
+	}
+
+	public synchronized String get(String key) {
+		Entry entry = lookup(key);
+		return entry != null ? entry.content : null;
+	}
+
+	public boolean writeTo(String key, String charset, OutputStream out) throws IOException {
+		Entry entry;
+		byte[] bytes;
+		synchronized (this) {
+			entry = lookup(key);
+			if (entry == null) {
+				return false;
+			}
+			bytes = entry.encodings != null ? entry.encodings.get(charset) : null;
+		}
+
+		if (bytes == null) {
+			//encoded without holding the lock, then kept unless the entry has been replaced meanwhile
+			bytes = entry.content.getBytes(charset);
+			synchronized (this) {
+				if (entries.get(key) == entry && (entry.encodings == null || !entry.encodings.containsKey(charset))) {
+					if (entry.encodings == null) {
+						entry.encodings = new HashMap<String, byte[]>(4);
+					}
+					entry.encodings.put(charset, bytes);
+					chars -= entry.weight();
+					entry.encodedBytes += bytes.length;
+					chars += entry.weight();
+					evict();
+				}
+			}
+		}
+
+		out.write(bytes);
+		return true;
+	}
+
+	public synchronized void put(String key, String content, long ttl) {
+		if (content.length() > maxChars) {
+			remove(key);
+			return;
+		}
+
+		Entry entry = new Entry(content, ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+		Entry previous = entries.put(key, entry);
+		if (previous != null) {
+			chars -= previous.weight();
+		}
+		chars += entry.weight();
+		evict();
+	}
+
+	public synchronized void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			chars -= entry.weight();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		chars = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the entry for the given key, removing it if it has expired.
+	 */
+	private Entry lookup(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expires != 0 && entry.expires < System.currentTimeMillis()) {
+			remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || chars > maxChars) && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			chars -= eldest.getValue().weight();
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,560 @@
+package com.googlecode.jspcompressor.cache;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * {@link ContentCache} kept in a memory mapped file, so that all JVMs on a host that open the same
+ * file share their entries: content compressed by one is a hit for all others, and a restarted JVM
+ * starts with a warm cache. No other process or service is involved.
+ *
+ * <p>The file holds a hash index and a data area divided into regions, used as a ring. Space for an
+ * entry is claimed by advancing a write cursor in the file header with compare and swap, and entries
+ * never span regions. Once the cursor enters a region again, the entries written there in the previous
+ * round are evicted without touching the index: an index slot only counts while the region of its entry
+ * has not been reused. Entries are thus evicted oldest first, one region at a time, and an entry can take
+ * at most one region. A key is looked up in a short run of slots after its home slot; when all of them are
+ * in use, the oldest entry among them is replaced.
+ *
+ * <p>Nothing is locked. Each index slot is a single long holding part of the key hash and the address of
+ * the entry, and is published with compare and swap once the entry has been written. Readers copy an entry
+ * and then check that its region was not reused meanwhile and that its checksum still matches, so a hit is
+ * never assembled from a partly overwritten entry. A JVM that exits halfway through a write leaves at most
+ * some unused space behind. The layout of an existing file is kept even if it was created with different
+ * sizes. Content is kept as UTF-8 and written to responses in that charset without decoding it.
+ *
+ * <p>Entries outlive the JVMs that wrote them, including redeployments of the application. Keys are
+ * therefore scoped by a generation, such as the version of the application, so entries written by other
+ * versions are never returned and simply age out of the ring.
+ *
+ * <p>Atomic access to the mapped memory relies on <code>sun.misc.Unsafe</code> of a Java 8 or later
+ * runtime, looked up at runtime; where it is not available the cache can't be opened.
+ */
+public class MappedContentCache implements EncodedContentCache {
+
+	private static final int MAGIC = 0x4A535043;
+	private static final int VERSION = 2;
+	private static final int REGIONS = 8;
+	private static final int PROBES = 16;
+	private static final int ATTEMPTS = 4;
+
+	//header: magic, version, slot count, region size, write cursor
+	private static final int SLOT_COUNT = 8;
+	private static final int REGION_SIZE = 12;
+	private static final int CURSOR = 16;
+	private static final int HEADER = 64;
+
+	//slot: used flag, 23 bits of the key hash and the low 40 bits of the entry address, 0 for free slots
+	private static final int SLOT = 8;
+	private static final long USED = 1L << 63;
+	private static final int TAG_MASK = 0x7FFFFF;
+	private static final long ADDRESS_MASK = (1L << 40) - 1;
+
+	//entry: key hash, key length, content length, checksum, expiry time, followed by the key and content bytes
+	private static final int ENTRY = 24;
+
+	//sun.misc.Unsafe and the methods used, null if not available
+	private static final Object UNSAFE;
+	private static final Method GET_LONG;
+	private static final Method GET_LONG_VOLATILE;
+	private static final Method PUT_LONG_VOLATILE;
+	private static final Method COMPARE_AND_SWAP_LONG;
+	private static final Method LOAD_FENCE;
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		Object unsafe = null;
+		Method[] methods = new Method[5];
+		long offset = -1;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+
+			methods[0] = type.getMethod("getLong", Object.class, long.class);
+			methods[1] = type.getMethod("getLongVolatile", Object.class, long.class);
+			methods[2] = type.getMethod("putLongVolatile", Object.class, long.class, long.class);
+			methods[3] = type.getMethod("compareAndSwapLong", Object.class, long.class, long.class, long.class);
+			//fences have only been available since Java 8
+			methods[4] = type.getMethod("loadFence");
+
+			Method objectFieldOffset = type.getMethod("objectFieldOffset", Field.class);
+			offset = ((Long) objectFieldOffset.invoke(unsafe, Buffer.class.getDeclaredField("address"))).longValue();
+		} catch (Exception e) {
+			unsafe = null;
+		}
+
+		UNSAFE = unsafe;
+		GET_LONG = methods[0];
+		GET_LONG_VOLATILE = methods[1];
+		PUT_LONG_VOLATILE = methods[2];
+		COMPARE_AND_SWAP_LONG = methods[3];
+		LOAD_FENCE = methods[4];
+		ADDRESS_OFFSET = offset;
+	}
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final long address;
+	private final int slots;
+	private final int regionSize;
+	private final int data;
+	private final long dataSize;
+	private final String generation;
+
+	/**
+	 * Opens the cache in the given file, creating the file if it doesn't exist. Entries are
+	 * not scoped by a generation.
+	 *
+	 * @param path cache file, the same for all JVMs that share the cache
+	 * @param maxEntries maximum number of entries, the index has twice as many slots
+	 * @param maxBytes size of the data area in bytes
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public MappedContentCache(File path, int maxEntries, long maxBytes) throws IOException {
+		this(path, maxEntries, maxBytes, null);
+	}
+
+	/**
+	 * Opens the cache in the given file, creating the file if it doesn't exist.
+	 *
+	 * @param path cache file, the same for all JVMs that share the cache
+	 * @param maxEntries maximum number of entries, the index has twice as many slots
+	 * @param maxBytes size of the data area in bytes
+	 * @param generation generation the entries of this instance belong to, or <code>null</code>
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public MappedContentCache(File path, int maxEntries, long maxBytes, String generation) throws IOException {
+		if (UNSAFE == null || ADDRESS_OFFSET < 0) {
+			throw new IOException("Atomic access to mapped memory is not available in this runtime");
+		}
+
+		this.generation = generation != null ? generation + '\0' : null;
+		file = new RandomAccessFile(path, "rw");
+		FileChannel channel = file.getChannel();
+
+		//only creating the file is locked, so that two JVMs starting together don't both initialize it
+		FileLock lock = channel.lock();
+		try {
+			int slotCount;
+			int size;
+			if (isInitialized(channel)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				channel.read(header, 0);
+				slotCount = header.getInt(SLOT_COUNT);
+				size = header.getInt(REGION_SIZE);
+			} else {
+				slotCount = PROBES;
+				while (slotCount < 2L * maxEntries && slotCount < (1 << 24)) {
+					slotCount <<= 1;
+				}
+				long limit = (Integer.MAX_VALUE - HEADER - (long) slotCount * SLOT) / REGIONS;
+				size = (int) Math.min(limit, maxBytes / REGIONS) & ~7;
+			}
+
+			slots = slotCount;
+			regionSize = size;
+			data = HEADER + slots * SLOT;
+			dataSize = (long) REGIONS * regionSize;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, data + dataSize);
+			address = ((Long) invoke(GET_LONG, buffer, ADDRESS_OFFSET)).longValue();
+
+			if (!isInitialized(channel)) {
+				initialize();
+			}
+		} finally {
+			lock.release();
+		}
+	}
+
+	public String get(String key) {
+		byte[] content = read(key);
+		if (content == null) {
+			return null;
+		}
+		try {
+			return new String(content, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	public boolean writeTo(String key, String charset, OutputStream out) throws IOException {
+		byte[] content = read(key);
+		if (content == null) {
+			return false;
+		}
+		if (!isUtf8(charset)) {
+			content = new String(content, "UTF-8").getBytes(charset);
+		}
+		out.write(content);
+		return true;
+	}
+
+	public void put(String key, String content, long ttl) {
+		key = scope(key);
+		byte[] keyBytes = encode(key);
+		byte[] contentBytes = encode(content);
+		int hash = key.hashCode();
+
+		int size = (ENTRY + keyBytes.length + contentBytes.length + 7) & ~7;
+		if (size > regionSize) {
+			removeOthers(hash, keyBytes, 0);
+			return;
+		}
+
+		CRC32 checksum = new CRC32();
+		checksum.update(keyBytes);
+		checksum.update(contentBytes);
+
+		long entry = allocate(size);
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset(entry));
+		view.putInt(hash).putInt(keyBytes.length).putInt(contentBytes.length).putInt((int) checksum.getValue());
+		view.putLong(ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+		view.put(keyBytes).put(contentBytes);
+
+		//the compare and swap publishes the entry, readers can't see the slot before the entry is written
+		long value = USED | ((long) tag(hash) << 40) | (entry & ADDRESS_MASK);
+		for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+			long cursor = cursor();
+			int target = -1;
+			long expected = 0;
+			boolean replace = false;
+			int oldest = -1;
+			long oldestValue = 0;
+			long oldestEntry = Long.MAX_VALUE;
+
+			for (int i = 0; i < PROBES; i++) {
+				int index = (hash + i) & (slots - 1);
+				long current = slot(index);
+				long existing = entryAddress(current, cursor);
+				if ((current & USED) == 0 || !isLive(existing, cursor) || isExpired(existing)) {
+					if (target < 0) {
+						target = index;
+						expected = current;
+					}
+				} else if (tag(current) == tag(hash) && holds(existing, hash, keyBytes)) {
+					target = index;
+					expected = current;
+					replace = true;
+					break;
+				} else if (existing < oldestEntry) {
+					oldest = index;
+					oldestValue = current;
+					oldestEntry = existing;
+				}
+			}
+
+			if (target < 0) {
+				target = oldest;
+				expected = oldestValue;
+			}
+			if (casSlot(target, expected, value)) {
+				if (!replace) {
+					removeOthers(hash, keyBytes, value);
+				}
+				return;
+			}
+		}
+	}
+
+	public void remove(String key) {
+		key = scope(key);
+		removeOthers(key.hashCode(), encode(key), 0);
+	}
+
+	/**
+	 * Removes the entries of all JVMs sharing the cache. Entries put at the same time may survive.
+	 */
+	public void clear() {
+		for (int index = 0; index < slots; index++) {
+			invoke(PUT_LONG_VOLATILE, null, slotAddress(index), 0L);
+		}
+	}
+
+	/**
+	 * Returns the number of entries held by all JVMs sharing the cache. The whole index is counted.
+	 */
+	public int size() {
+		long cursor = cursor();
+		int count = 0;
+		for (int index = 0; index < slots; index++) {
+			long value = slot(index);
+			if ((value & USED) != 0 && isLive(entryAddress(value, cursor), cursor)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Closes the cache file. The mapping itself is released by the garbage collector.
+	 *
+	 * @throws IOException if closing the file fails
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Returns a copy of the UTF-8 encoded content for the given key, or <code>null</code> if there is no
+	 * entry, the entry has expired or it was overwritten while it was being copied.
+	 */
+	private byte[] read(String key) {
+		key = scope(key);
+		byte[] keyBytes = encode(key);
+		int hash = key.hashCode();
+
+		for (int i = 0; i < PROBES; i++) {
+			int index = (hash + i) & (slots - 1);
+			long value = slot(index);
+			if ((value & USED) == 0 || tag(value) != tag(hash)) {
+				continue;
+			}
+
+			long cursor = cursor();
+			long entry = entryAddress(value, cursor);
+			if (!isLive(entry, cursor)) {
+				continue;
+			}
+
+			int contentLength = match(entry, hash, keyBytes);
+			if (contentLength < 0) {
+				continue;
+			}
+			int offset = offset(entry);
+			long expires = buffer.getLong(offset + 16);
+			int sum = buffer.getInt(offset + 12);
+			byte[] content = new byte[contentLength];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + ENTRY + keyBytes.length);
+			view.get(content);
+
+			//the copy only counts if the region has not been reused while it was made
+			invoke(LOAD_FENCE);
+			if (!isLive(entry, cursor())) {
+				continue;
+			}
+			CRC32 checksum = new CRC32();
+			checksum.update(keyBytes);
+			checksum.update(content);
+			if ((int) checksum.getValue() != sum) {
+				continue;
+			}
+
+			if (expires != 0 && expires < System.currentTimeMillis()) {
+				casSlot(index, value, 0);
+				return null;
+			}
+			return content;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the key prefixed with the generation, if one is set.
+	 */
+	private String scope(String key) {
+		return generation != null ? generation + key : key;
+	}
+
+	/**
+	 * Claims space for an entry by advancing the write cursor, moving on to the next region if the
+	 * entry doesn't fit into the current one.
+	 *
+	 * @return logical address of the entry, counted from the creation of the file
+	 */
+	private long allocate(int size) {
+		while (true) {
+			long cursor = cursor();
+			long start = cursor;
+			long regionEnd = (cursor / regionSize + 1) * regionSize;
+			if (start + size > regionEnd) {
+				start = regionEnd;
+			}
+			if (compareAndSwap(address + CURSOR, cursor, start + size)) {
+				return start;
+			}
+		}
+	}
+
+	/**
+	 * Frees the slots holding the given key other than the one with the given value.
+	 */
+	private void removeOthers(int hash, byte[] keyBytes, long keep) {
+		long cursor = cursor();
+		for (int i = 0; i < PROBES; i++) {
+			int index = (hash + i) & (slots - 1);
+			long value = slot(index);
+			if ((value & USED) == 0 || value == keep || tag(value) != tag(hash)) {
+				continue;
+			}
+
+			long entry = entryAddress(value, cursor);
+			if (isLive(entry, cursor) && holds(entry, hash, keyBytes)) {
+				casSlot(index, value, 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the entry holds the given key.
+	 */
+	private boolean holds(long entry, int hash, byte[] keyBytes) {
+		return match(entry, hash, keyBytes) >= 0;
+	}
+
+	/**
+	 * Returns the content length of the entry if it holds the given key, or <code>-1</code>. Lengths are
+	 * checked against the region, as the entry may be overwritten while it is read.
+	 */
+	private int match(long entry, int hash, byte[] keyBytes) {
+		int offset = offset(entry);
+		if (buffer.getInt(offset) != hash || buffer.getInt(offset + 4) != keyBytes.length) {
+			return -1;
+		}
+
+		int contentLength = buffer.getInt(offset + 8);
+		long end = entry % regionSize + ENTRY + keyBytes.length + (long) contentLength;
+		if (contentLength < 0 || end > regionSize) {
+			return -1;
+		}
+
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (buffer.get(offset + ENTRY + i) != keyBytes[i]) {
+				return -1;
+			}
+		}
+		return contentLength;
+	}
+
+	private boolean isExpired(long entry) {
+		long expires = buffer.getLong(offset(entry) + 16);
+		return expires != 0 && expires < System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns <code>true</code> if the region of the entry has not been reused since it was written.
+	 */
+	private boolean isLive(long entry, long cursor) {
+		return entry >= 0 && cursor - (entry - entry % regionSize) <= dataSize;
+	}
+
+	/**
+	 * Returns the logical address of the entry a slot points to. Slots keep the low bits of the
+	 * address only, the rest follows from the write cursor, which is at most a ring ahead for live entries.
+	 */
+	private static long entryAddress(long value, long cursor) {
+		return cursor - ((cursor - (value & ADDRESS_MASK)) & ADDRESS_MASK);
+	}
+
+	private int offset(long entry) {
+		return data + (int) (entry % dataSize);
+	}
+
+	private static int tag(int hash) {
+		return (hash >>> 9) & TAG_MASK;
+	}
+
+	private static int tag(long value) {
+		return (int) (value >>> 40) & TAG_MASK;
+	}
+
+	private long cursor() {
+		return ((Long) invoke(GET_LONG_VOLATILE, null, address + CURSOR)).longValue();
+	}
+
+	private long slotAddress(int index) {
+		return address + HEADER + (long) index * SLOT;
+	}
+
+	private long slot(int index) {
+		return ((Long) invoke(GET_LONG_VOLATILE, null, slotAddress(index))).longValue();
+	}
+
+	private boolean casSlot(int index, long expected, long value) {
+		return compareAndSwap(slotAddress(index), expected, value);
+	}
+
+	private static boolean compareAndSwap(long address, long expected, long value) {
+		return ((Boolean) invoke(COMPARE_AND_SWAP_LONG, null, address, expected, value)).booleanValue();
+	}
+
+	private static Object invoke(Method method, Object... args) {
+		try {
+			return method.invoke(UNSAFE, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause().getMessage());
+		}
+	}
+
+	private static boolean isInitialized(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(8);
+		channel.read(header, 0);
+		return header.getInt(0) == MAGIC && header.getInt(4) == VERSION;
+	}
+
+	private void initialize() {
+		for (int i = 0; i < data; i += 8) {
+			buffer.putLong(i, 0);
+		}
+		buffer.putInt(SLOT_COUNT, slots);
+		buffer.putInt(REGION_SIZE, regionSize);
+
+		//written last, so a file is never taken as initialized before it is
+		buffer.putInt(4, VERSION);
+		buffer.putInt(0, MAGIC);
+		buffer.force();
+	}
+
+	private static boolean isUtf8(String charset) {
+		try {
+			return Charset.forName(charset).name().equals("UTF-8");
+		} catch (IllegalArgumentException e) {
+			//unknown charset, reported when encoding
+			return false;
+		}
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
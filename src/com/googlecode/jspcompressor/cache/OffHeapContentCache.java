@@ -0,0 +1,374 @@
+package com.googlecode.jspcompressor.cache;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ContentCache} that keeps content encoded as UTF-8 in direct buffers, outside of the heap,
+ * so that large caches neither grow the old generation nor lengthen collections.
+ *
+ * <p>Entries are appended to a ring of equally sized slabs. Once the slab being written is full,
+ * writing continues in the oldest slab and the entries held there are evicted, so entries are evicted
+ * oldest first, one slab at a time, and an entry can take at most one slab. Slabs are allocated when
+ * first written. The index is kept on the heap in primitive arrays: an open addressing table from
+ * the hash of each key to the slab and offset of its entry.
+ *
+ * <p>Hits can be written to a channel or stream straight from direct memory with
+ * {@link #writeTo(String, WritableByteChannel)}, without decoding them. A slab that is still being
+ * written out when it is reused is replaced with a new one instead of being overwritten.
+ * {@link #writeTo(String, String, OutputStream)} does the same for responses encoded as UTF-8.
+ */
+public class OffHeapContentCache implements EncodedContentCache {
+
+	private static final int SLABS = 8;
+
+	//entry header: key hash, key length and content length, followed by the key and content bytes
+	private static final int HEADER = 12;
+
+	private static final long FREE = -1L;
+
+	private final int maxEntries;
+	private final int slabSize;
+
+	private final Slab[] slabs = new Slab[SLABS];
+	private int head = 0;
+
+	//index with linear probing, the address of an entry is its slab << 32 | offset
+	private final int mask;
+	private final int[] hashes;
+	private final long[] addresses;
+	private final long[] expires;
+	private int count = 0;
+
+	private static class Slab {
+		final ByteBuffer buffer;
+		final AtomicInteger pins = new AtomicInteger();
+		int used = 0;
+
+		Slab(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	/**
+	 * @param maxEntries maximum number of entries
+	 * @param maxBytes maximum number of bytes of direct memory held by all slabs together
+	 */
+	public OffHeapContentCache(int maxEntries, long maxBytes) {
+		int capacity = 16;
+		while (capacity < 2L * maxEntries && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+
+		this.maxEntries = Math.min(maxEntries, capacity / 2);
+		this.slabSize = (int) Math.min(Integer.MAX_VALUE, maxBytes / SLABS);
+
+		mask = capacity - 1;
+		hashes = new int[capacity];
+		addresses = new long[capacity];
+		expires = new long[capacity];
+		Arrays.fill(addresses, FREE);
+	}
+
+	public String get(String key) {
+		Slab slab;
+		ByteBuffer content;
+		synchronized (this) {
+			int slot = lookup(key);
+			if (slot < 0) {
+				return null;
+			}
+			slab = slabs[(int) (addresses[slot] >>> 32)];
+			content = content(slot);
+			slab.pins.incrementAndGet();
+		}
+
+		//decoded without holding the lock, the slab is not reused meanwhile
+		try {
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		} finally {
+			slab.pins.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes the cached content for the given key to a channel, encoded as UTF-8. The content is
+	 * written from direct memory, the cache is not locked while writing.
+	 *
+	 * @param key cache key
+	 * @param channel blocking channel to write to
+	 * @return <code>false</code> if there is no entry or the entry has expired
+	 * @throws IOException if writing to the channel fails
+	 */
+	public boolean writeTo(String key, WritableByteChannel channel) throws IOException {
+		Slab slab;
+		ByteBuffer content;
+		synchronized (this) {
+			int slot = lookup(key);
+			if (slot < 0) {
+				return false;
+			}
+			slab = slabs[(int) (addresses[slot] >>> 32)];
+			content = content(slot);
+			slab.pins.incrementAndGet();
+		}
+
+		try {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+		} finally {
+			slab.pins.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the cached content for the given key to a stream, such as a servlet output stream,
+	 * encoded as UTF-8.
+	 *
+	 * @param key cache key
+	 * @param out stream to write to
+	 * @return <code>false</code> if there is no entry or the entry has expired
+	 * @throws IOException if writing to the stream fails
+	 * @see #writeTo(String, WritableByteChannel)
+	 */
+	public boolean writeTo(String key, OutputStream out) throws IOException {
+		return writeTo(key, Channels.newChannel(out));
+	}
+
+	/**
+	 * Writes the cached content for the given key to a stream, encoded in the given charset.
+	 * Content is kept as UTF-8, so only other charsets need decoding and encoding again.
+	 */
+	public boolean writeTo(String key, String charset, OutputStream out) throws IOException {
+		if (isUtf8(charset)) {
+			return writeTo(key, out);
+		}
+
+		String content = get(key);
+		if (content == null) {
+			return false;
+		}
+		out.write(content.getBytes(charset));
+		return true;
+	}
+
+	public synchronized void put(String key, String content, long ttl) {
+		byte[] keyBytes = encode(key);
+		byte[] contentBytes = encode(content);
+		int hash = key.hashCode();
+
+		int slot = find(hash, keyBytes);
+		if (slot >= 0) {
+			removeSlot(slot);
+		}
+
+		int size = HEADER + keyBytes.length + contentBytes.length;
+		if (size > slabSize || maxEntries <= 0) {
+			return;
+		}
+
+		if (slabs[head] != null && slabs[head].used + size > slabSize) {
+			advance();
+		}
+		while (count >= maxEntries) {
+			advance();
+		}
+
+		Slab slab = slabs[head];
+		if (slab == null) {
+			slab = new Slab(slabSize);
+			slabs[head] = slab;
+		}
+
+		int offset = slab.used;
+		ByteBuffer buffer = slab.buffer.duplicate();
+		buffer.position(offset);
+		buffer.putInt(hash).putInt(keyBytes.length).putInt(contentBytes.length);
+		buffer.put(keyBytes).put(contentBytes);
+		slab.used += size;
+
+		slot = hash & mask;
+		while (addresses[slot] != FREE) {
+			slot = (slot + 1) & mask;
+		}
+		hashes[slot] = hash;
+		addresses[slot] = ((long) head << 32) | offset;
+		expires[slot] = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		count++;
+	}
+
+	public synchronized void remove(String key) {
+		int slot = find(key.hashCode(), encode(key));
+		if (slot >= 0) {
+			removeSlot(slot);
+		}
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(addresses, FREE);
+		count = 0;
+		for (int i = 0; i < SLABS; i++) {
+			recycle(i);
+		}
+		head = 0;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the slot of the entry for the given key, removing it if it has expired.
+	 */
+	private int lookup(String key) {
+		int slot = find(key.hashCode(), encode(key));
+		if (slot >= 0 && expires[slot] != 0 && expires[slot] < System.currentTimeMillis()) {
+			removeSlot(slot);
+			return -1;
+		}
+		return slot;
+	}
+
+	private int find(int hash, byte[] keyBytes) {
+		for (int slot = hash & mask; addresses[slot] != FREE; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && keyEquals(addresses[slot], keyBytes)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(long address, byte[] keyBytes) {
+		ByteBuffer buffer = slabs[(int) (address >>> 32)].buffer;
+		int offset = (int) address;
+		if (buffer.getInt(offset + 4) != keyBytes.length) {
+			return false;
+		}
+
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (buffer.get(offset + HEADER + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a view of the content of the entry in the given slot.
+	 */
+	private ByteBuffer content(int slot) {
+		long address = addresses[slot];
+		ByteBuffer content = slabs[(int) (address >>> 32)].buffer.duplicate();
+		int offset = (int) address;
+		int start = offset + HEADER + content.getInt(offset + 4);
+		content.limit(start + content.getInt(offset + 8));
+		content.position(start);
+		return content;
+	}
+
+	/*
+	 * Frees a slot, moving later entries of the same probe sequence back so that
+	 * lookups don't stop at the freed slot.
+	 */
+	private void removeSlot(int slot) {
+		int hole = slot;
+		for (int next = (hole + 1) & mask; addresses[next] != FREE; next = (next + 1) & mask) {
+			//the entry can move if the hole lies between its home slot and its current slot
+			int home = hashes[next] & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				hashes[hole] = hashes[next];
+				addresses[hole] = addresses[next];
+				expires[hole] = expires[next];
+				hole = next;
+			}
+		}
+		addresses[hole] = FREE;
+		count--;
+	}
+
+	/*
+	 * Moves writing on to the next slab, evicting the entries held there.
+	 */
+	private void advance() {
+		head = (head + 1) % SLABS;
+		Slab slab = slabs[head];
+		if (slab == null) {
+			return;
+		}
+
+		ByteBuffer buffer = slab.buffer;
+		int offset = 0;
+		while (offset < slab.used) {
+			int hash = buffer.getInt(offset);
+			long address = ((long) head << 32) | offset;
+
+			//entries that have been replaced or removed are no longer in the index
+			for (int slot = hash & mask; addresses[slot] != FREE; slot = (slot + 1) & mask) {
+				if (addresses[slot] == address) {
+					removeSlot(slot);
+					break;
+				}
+			}
+			offset += HEADER + buffer.getInt(offset + 4) + buffer.getInt(offset + 8);
+		}
+		recycle(head);
+	}
+
+	private void recycle(int index) {
+		Slab slab = slabs[index];
+		if (slab == null) {
+			return;
+		}
+
+		if (slab.pins.get() > 0) {
+			//still being written out, left to the garbage collector once that is done
+			slabs[index] = null;
+		} else {
+			slab.used = 0;
+		}
+	}
+
+	private static boolean isUtf8(String charset) {
+		try {
+			return Charset.forName(charset).name().equals("UTF-8");
+		} catch (IllegalArgumentException e) {
+			//unknown charset, reported when encoding
+			return false;
+		}
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
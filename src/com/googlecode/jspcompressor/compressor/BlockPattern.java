@@ -0,0 +1,202 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+/**
+ * Linear time matcher for blocks that run from an opening sequence to the first closing sequence
+ * after it, such as comments or &lt;script> elements. Matches exactly what the equivalent lazy
+ * regular expression <code>open.*?close</code> (with <code>DOTALL</code> and ASCII
+ * <code>CASE_INSENSITIVE</code>) matches, but never scans past an unterminated block more than once:
+ * once the closing sequence cannot be found, no later block can be closed either.
+ */
+final class BlockPattern {
+
+	static final int MATCHED = 0;
+	static final int NO_BLOCK = 1;
+	static final int UNTERMINATED = 2;
+
+	private final String open;
+	private final String excluded;
+	private final boolean tag;
+	private final int minLength;
+	private final String close;
+	private final boolean element;
+
+	/**
+	 * @param open sequence a block starts with, in lower case
+	 * @param excluded if not <code>null</code>, the block must continue with a character
+	 * other than these after the opening sequence, like <code>[^excluded]</code>
+	 * @param tag if <code>true</code>, the opening sequence is a tag name and the block
+	 * content starts after the first '&gt;' that follows, like <code>[^>]*?></code>
+	 * @param minLength minimum number of characters between the opening and closing sequence
+	 * @param close sequence a block ends with
+	 */
+	BlockPattern(String open, String excluded, boolean tag, int minLength, String close) {
+		this(open, excluded, tag, minLength, close, false);
+	}
+
+	private BlockPattern(String open, String excluded, boolean tag, int minLength, String close, boolean element) {
+		this.open = open;
+		this.excluded = excluded;
+		this.tag = tag;
+		this.minLength = minLength;
+		this.close = close;
+		this.element = element;
+	}
+
+	/**
+	 * Creates a pattern for elements with the given tag name, from the start tag to the first end tag.
+	 * Unlike the tag patterns above, the tag name must be followed by white space, '/' or '&gt;', and
+	 * self-closing tags don't start a block.
+	 *
+	 * @param name tag name in lower case
+	 */
+	static BlockPattern element(String name) {
+		return new BlockPattern("<" + name, null, true, 0, "</" + name + ">", true);
+	}
+
+	/**
+	 * Finds the next block.
+	 *
+	 * @param text text to search
+	 * @param from index to search from
+	 * @return start and end index of the block, or <code>null</code> if there are no more blocks
+	 */
+	int[] find(String text, int from) {
+		int[] bounds = new int[3];
+		for (int start = TextScanner.indexOfIgnoreCase(text, open, from); start >= 0;
+				start = TextScanner.indexOfIgnoreCase(text, open, start + 1)) {
+			int result = match(text, start, bounds);
+			if (result == MATCHED) {
+				return new int[] {start, bounds[2]};
+			} else if (result == UNTERMINATED) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Matches a block at the given index, which must be the index of the opening sequence.
+	 *
+	 * @param text text to match
+	 * @param start index of the opening sequence
+	 * @param bounds receives the index the content starts at, the index of the closing sequence
+	 * and the end index of the block
+	 * @return {@link #MATCHED}, {@link #NO_BLOCK} if no block starts at the index, or
+	 * {@link #UNTERMINATED} if the block is not closed, in which case no later block is either
+	 */
+	int match(String text, int start, int[] bounds) {
+		int content = start + open.length();
+
+		if (excluded != null) {
+			if (content >= text.length()) {
+				return UNTERMINATED;
+			}
+			if (excluded.indexOf(text.charAt(content)) >= 0) {
+				return NO_BLOCK;
+			}
+			content++;
+		}
+
+		if (element) {
+			if (content >= text.length()) {
+				return UNTERMINATED;
+			}
+			char c = text.charAt(content);
+			if (c != '>' && c != '/' && !TextScanner.isSpace(c)) {
+				return NO_BLOCK;
+			}
+		}
+
+		if (tag) {
+			int gt = text.indexOf('>', content);
+			if (gt < 0) {
+				return UNTERMINATED;
+			}
+			if (element && text.charAt(gt - 1) == '/') {
+				return NO_BLOCK;
+			}
+			content = gt + 1;
+		}
+
+		int end = TextScanner.indexOfIgnoreCase(text, close, content + minLength);
+		if (end < 0) {
+			return UNTERMINATED;
+		}
+
+		bounds[0] = content;
+		bounds[1] = end;
+		bounds[2] = end + close.length();
+		return MATCHED;
+	}
+
+	/**
+	 * Returns the sequence blocks start with, in lower case.
+	 */
+	String getOpen() {
+		return open;
+	}
+
+	/**
+	 * Removes all blocks.
+	 */
+	String remove(String text) {
+		int[] block = find(text, 0);
+		if (block == null) {
+			return text;
+		}
+
+		StringBuilder sb = new StringBuilder(text.length());
+		int last = 0;
+		while (block != null) {
+			sb.append(text, last, block[0]);
+			last = block[1];
+			block = find(text, last);
+		}
+		sb.append(text, last, text.length());
+		return sb.toString();
+	}
+
+	/**
+	 * Replaces all blocks with numbered placeholders.
+	 *
+	 * @param text text to search
+	 * @param tempBlock placeholder with a '#' that is replaced with the block number
+	 * @param blocks list the blocks are added to
+	 */
+	String preserve(String text, String tempBlock, List<String> blocks) {
+		int[] block = find(text, 0);
+		if (block == null) {
+			return text;
+		}
+
+		int hash = tempBlock.indexOf('#');
+		StringBuilder sb = new StringBuilder(text.length());
+		int last = 0;
+		int index = 0;
+		while (block != null) {
+			blocks.add(text.substring(block[0], block[1]));
+			sb.append(text, last, block[0]);
+			sb.append(tempBlock, 0, hash).append(index++).append(tempBlock, hash + 1, tempBlock.length());
+			last = block[1];
+			block = find(text, last);
+		}
+		sb.append(text, last, text.length());
+		return sb.toString();
+	}
+}
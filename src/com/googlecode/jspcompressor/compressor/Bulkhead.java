@@ -0,0 +1,102 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of threads doing a kind of work at the same time. Threads that find
+ * the limit reached are turned away instead of waiting, so they can fall back to cheaper work.
+ *
+ * <p>The bulkhead returned by {@link #getYuiBulkhead()} limits YUI Compressor work done by
+ * {@link JspCompressor} across the JVM. It is created from the <code>jspcompressor.yui.maxConcurrent</code>
+ * system property, and there is no limit if the property is not set. Compressors can be given
+ * their own bulkhead with {@link JspCompressor#setYuiBulkhead(Bulkhead)} instead.
+ */
+public class Bulkhead {
+
+	private static final Bulkhead yuiBulkhead = create(Integer.getInteger("jspcompressor.yui.maxConcurrent", -1).intValue());
+
+	private final int maxConcurrent;
+	private final Semaphore permits;
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	/**
+	 * @param maxConcurrent maximum number of threads allowed in at the same time
+	 */
+	public Bulkhead(int maxConcurrent) {
+		if (maxConcurrent <= 0) {
+			throw new IllegalArgumentException("maxConcurrent must be positive: " + maxConcurrent);
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.permits = new Semaphore(maxConcurrent);
+	}
+
+	/**
+	 * Lets the calling thread in unless the limit has been reached. Each successful call must be
+	 * followed by a call to {@link #release()}.
+	 *
+	 * @return <code>true</code> if the thread may proceed, <code>false</code> if it has been turned away
+	 */
+	public boolean tryAcquire() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Lets the next thread in.
+	 */
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * Returns the maximum number of threads allowed in at the same time.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Returns the number of threads currently in.
+	 */
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the number of times a thread has been turned away.
+	 */
+	public int getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the bulkhead limiting concurrent YUI Compressor work.
+	 *
+	 * @return bulkhead, or <code>null</code> if there is no limit
+	 */
+	public static Bulkhead getYuiBulkhead() {
+		return yuiBulkhead;
+	}
+
+	private static Bulkhead create(int maxConcurrent) {
+		return maxConcurrent > 0 ? new Bulkhead(maxConcurrent) : null;
+	}
+}
@@ -0,0 +1,295 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that compresses content incrementally as it is written and passes the result
+ * to a target writer. Content is buffered until a safe prefix is available, that is a prefix
+ * that does not end inside a preserved block (&lt;script>, &lt;style>, &lt;pre>, &lt;textarea>,
+ * scriptlets, comments, CDATA sections and the custom preserved tags of a {@link JspCompressor}).
+ * Safe prefixes are compressed and written out when:
+ * <ul>
+ * <li>one of the flush markers (by default <code>&lt;/head></code> and <code>&lt;/header></code>)
+ * has been written, after which the target writer is flushed as well, or</li>
+ * <li>the buffer grows beyond the maximum buffer size, if one is set.</li>
+ * </ul>
+ *
+ * <p>Size triggered cuts are made only in front of a tag that directly follows text or another tag,
+ * and never next to a comment, so the output is the same as compressing the whole content in one go. Cuts at flush markers
+ * are made right after the marker and may drop whitespace that directly follows it.
+ *
+ * <p>Call {@link #finish()} once all content has been written to compress whatever is left.
+ */
+public class CompressingWriter extends Writer {
+
+	public static final String[] DEFAULT_FLUSH_MARKERS = {"</head>", "</header>"};
+
+	// preserved block openers and the closers that end them, must match the compressor patterns
+	private static final String[] OPENERS = {"<script", "<style", "<pre", "<textarea", "<!--", "<![CDATA[", "<%"};
+	private static final String[] CLOSERS = {"</script>", "</style>", "</pre>", "</textarea>", "-->", "]]>", "%>"};
+	// blocks the compressor may remove entirely, such as comments
+	private static final boolean[] REMOVABLE = {false, false, false, false, true, false, true};
+
+	// long enough to recognize any opener or closer
+	private static final int MIN_LOOKAHEAD = 12;
+
+	private final Writer out;
+	private final Compressor compressor;
+
+	private final String[] openers;
+	private final String[] closers;
+	private final boolean[] removableBlocks;
+
+	private String[] flushMarkers = DEFAULT_FLUSH_MARKERS;
+	private int maxBufferSize = 0;
+	private int lookahead = MIN_LOOKAHEAD;
+
+	private final StringBuilder buffer = new StringBuilder(8192);
+	private int scanned = 0;
+	private String closer = null;
+	private boolean removable = false;
+	private int removableEnd = -1;
+	private int lastCut = -1;
+	private int markerCut = -1;
+	private boolean finished = false;
+	private Exception failure = null;
+
+	/**
+	 * @param out writer compressed content is written to
+	 * @param compressor compressor used for each safe prefix
+	 */
+	public CompressingWriter(Writer out, Compressor compressor) {
+		this.out = out;
+		this.compressor = compressor;
+
+		String[] tags = compressor instanceof JspCompressor ? ((JspCompressor) compressor).getPreserveTags() : new String[0];
+		openers = new String[OPENERS.length + tags.length];
+		closers = new String[openers.length];
+		removableBlocks = new boolean[openers.length];
+		System.arraycopy(OPENERS, 0, openers, 0, OPENERS.length);
+		System.arraycopy(CLOSERS, 0, closers, 0, OPENERS.length);
+		System.arraycopy(REMOVABLE, 0, removableBlocks, 0, OPENERS.length);
+		for (int i = 0; i < tags.length; i++) {
+			openers[OPENERS.length + i] = "<" + tags[i];
+			closers[OPENERS.length + i] = "</" + tags[i] + ">";
+		}
+		setFlushMarkers(flushMarkers);
+	}
+
+	/**
+	 * Sets the markers after which compressed content is written and the target writer flushed.
+	 * Markers are matched case insensitively outside of preserved blocks.
+	 *
+	 * @param flushMarkers markers to flush at, or an empty array to disable marker flushing
+	 */
+	public void setFlushMarkers(String[] flushMarkers) {
+		this.flushMarkers = flushMarkers;
+
+		lookahead = MIN_LOOKAHEAD;
+		for (String marker : flushMarkers) {
+			lookahead = Math.max(lookahead, marker.length());
+		}
+		for (String closer : closers) {
+			lookahead = Math.max(lookahead, closer.length());
+		}
+	}
+
+	/**
+	 * Sets the number of buffered characters above which safe prefixes are compressed and written out
+	 * even if no flush marker was seen. Default is <code>0</code>, which buffers until a marker or {@link #finish()}.
+	 *
+	 * @param maxBufferSize buffer size in characters, or <code>0</code> to disable
+	 */
+	public void setMaxBufferSize(int maxBufferSize) {
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		buffer.append(cbuf, off, len);
+		process();
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		ensureOpen();
+		buffer.append(str, off, off + len);
+		process();
+	}
+
+	public void write(int c) throws IOException {
+		ensureOpen();
+		buffer.append((char) c);
+		process();
+	}
+
+	/**
+	 * Flushes the target writer. Buffered content that is not yet known to be safe stays buffered.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Compresses and writes all remaining content. The target writer is not closed.
+	 *
+	 * @throws IOException if compression or writing fails
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		if (buffer.length() > 0) {
+			emit(buffer.length());
+		}
+	}
+
+	/**
+	 * Finishes this writer and closes the target writer.
+	 */
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	/**
+	 * Returns the exception thrown by the compressor, or <code>null</code> if compression has not failed.
+	 * Lets callers tell compression failures apart from failures of the target writer.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Writer has already been finished");
+		}
+	}
+
+	private void process() throws IOException {
+		int limit = buffer.length() - lookahead;
+		int i = scanned;
+
+		while (i < limit) {
+			char c = buffer.charAt(i);
+
+			if (closer != null) {
+				if (Character.toLowerCase(c) == closer.charAt(0) && regionMatches(i, closer)) {
+					i += closer.length();
+					closer = null;
+					if (removable) {
+						removableEnd = i;
+					}
+				} else {
+					i++;
+				}
+				continue;
+			}
+
+			int marker = findMarker(i, c);
+			if (marker >= 0) {
+				i += flushMarkers[marker].length();
+				markerCut = i;
+				continue;
+			}
+
+			if (c == '<') {
+				int opener = findOpener(i);
+
+				//never cut next to a block that may be removed, the whitespace around it could be trimmed
+				if (i > 0 && i != removableEnd && !Character.isWhitespace(buffer.charAt(i - 1))
+						&& (opener < 0 || !removableBlocks[opener])) {
+					lastCut = i;
+				}
+
+				if (opener >= 0) {
+					closer = closers[opener];
+					removable = removableBlocks[opener];
+					i += openers[opener].length();
+					continue;
+				}
+			}
+			i++;
+		}
+
+		scanned = Math.max(scanned, i);
+
+		if (markerCut > 0) {
+			emit(markerCut);
+			out.flush();
+		} else if (maxBufferSize > 0 && buffer.length() > maxBufferSize && lastCut > 0) {
+			emit(lastCut);
+		}
+	}
+
+	private int findMarker(int index, char c) {
+		char lower = Character.toLowerCase(c);
+		for (int i = 0; i < flushMarkers.length; i++) {
+			String marker = flushMarkers[i];
+			if (marker.length() > 0 && Character.toLowerCase(marker.charAt(0)) == lower && regionMatches(index, marker)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int findOpener(int index) {
+		for (int i = 0; i < openers.length; i++) {
+			if (regionMatches(index, openers[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean regionMatches(int index, String str) {
+		int len = str.length();
+		if (index + len > buffer.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < len; i++) {
+			if (Character.toLowerCase(buffer.charAt(index + i)) != Character.toLowerCase(str.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void emit(int cut) throws IOException {
+		String segment = buffer.substring(0, cut);
+		buffer.delete(0, cut);
+		scanned = Math.max(0, scanned - cut);
+		lastCut = -1;
+		markerCut = -1;
+		removableEnd -= cut;
+
+		String result;
+		try {
+			result = compressor.compress(segment);
+		} catch (Exception e) {
+			failure = e;
+			out.write(segment);
+			IOException ioe = new IOException("Failed to compress content: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+		out.write(result);
+	}
+}
@@ -0,0 +1,64 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of configured compressors shared between threads, keyed by a string describing their configuration.
+ * Compressors are configured once before they are registered and must not be reconfigured afterwards,
+ * so a single instance can serve any number of concurrent requests.
+ */
+public class CompressorRegistry {
+
+	private final ConcurrentMap<String, Compressor> compressors = new ConcurrentHashMap<String, Compressor>();
+
+	/**
+	 * Returns the compressor registered under the given key.
+	 *
+	 * @param key configuration key
+	 * @return registered compressor or <code>null</code>
+	 */
+	public Compressor get(String key) {
+		return compressors.get(key);
+	}
+
+	/**
+	 * Registers a compressor unless another thread registered one under the same key first.
+	 *
+	 * @param key configuration key
+	 * @param compressor fully configured compressor
+	 * @return the compressor registered under the key, which may be a different instance
+	 */
+	public Compressor register(String key, Compressor compressor) {
+		Compressor existing = compressors.putIfAbsent(key, compressor);
+		return existing != null ? existing : compressor;
+	}
+
+	/**
+	 * Returns the number of registered compressors.
+	 */
+	public int size() {
+		return compressors.size();
+	}
+
+	/**
+	 * Removes all registered compressors.
+	 */
+	public void clear() {
+		compressors.clear();
+	}
+}
@@ -0,0 +1,158 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compresses sample content a number of times so YUI Compressor and Rhino classes are loaded
+ * and the compressor code paths are compiled before real requests arrive. Every page is compressed
+ * with JavaScript and CSS compression both enabled and disabled. A built-in sample page is used
+ * if no pages are added.
+ *
+ * <p>Typically run on a background thread, while {@link #isFinished()} is polled to decide
+ * whether the application is ready.
+ */
+public class CompressorWarmup implements Runnable {
+
+	/**
+	 * Sample page used when no pages are added.
+	 */
+	public static final String SAMPLE_PAGE = "<!DOCTYPE html>\n"
+			+ "<html>\n"
+			+ "  <head>\n"
+			+ "    <title>Warm-up</title>\n"
+			+ "    <!-- page styles -->\n"
+			+ "    <style type=\"text/css\">\n"
+			+ "      body { margin : 0px ; padding : 0px ; color : #333333 ; }\n"
+			+ "      .item  a:hover { text-decoration : underline ; }\n"
+			+ "    </style>\n"
+			+ "    <script type=\"text/javascript\">\n"
+			+ "      function toggle( id ) {\n"
+			+ "        var element = document.getElementById( id ) ;\n"
+			+ "        element.style.display = ( element.style.display == 'none' ) ? '' : 'none' ;\n"
+			+ "        return false ;\n"
+			+ "      }\n"
+			+ "    </script>\n"
+			+ "  </head>\n"
+			+ "  <body class=\"page\">\n"
+			+ "    <%-- server side comment --%>\n"
+			+ "    <div id=\"list\">\n"
+			+ "      <ul>\n"
+			+ "        <li class=\"item\"><a href=\"#\" onclick=\"return toggle('details');\">  First  </a></li>\n"
+			+ "        <li class=\"item\"><a href=\"#\">  Second  </a></li>\n"
+			+ "        <li class=\"item\"><%= request.getParameter(\"name\") %></li>\n"
+			+ "      </ul>\n"
+			+ "    </div>\n"
+			+ "    <pre>  preformatted\n    text  </pre>\n"
+			+ "    <textarea name=\"notes\">  keep   this  </textarea>\n"
+			+ "  </body>\n"
+			+ "</html>\n";
+
+	/**
+	 * Sample XML document compressed on every iteration.
+	 */
+	public static final String SAMPLE_XML = "<?xml version=\"1.0\"?>\n"
+			+ "<catalog>\n"
+			+ "  <!-- items -->\n"
+			+ "  <item id=\"1\">\n"
+			+ "    <name>  First  </name>\n"
+			+ "    <description><![CDATA[  <b>keep</b>  ]]></description>\n"
+			+ "  </item>\n"
+			+ "</catalog>\n";
+
+	private final int iterations;
+	private final List<String> pages = new ArrayList<String>();
+
+	private volatile boolean finished = false;
+	private volatile long elapsedTime = -1;
+	private volatile int failed = 0;
+
+	/**
+	 * @param iterations number of times each page is compressed
+	 */
+	public CompressorWarmup(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Adds a page to compress during warm-up.
+	 *
+	 * @param page HTML content
+	 */
+	public void addPage(String page) {
+		pages.add(page);
+	}
+
+	public void run() {
+		long start = System.currentTimeMillis();
+
+		try {
+			JspCompressor defaultCompressor = new JspCompressor();
+
+			JspCompressor fullCompressor = new JspCompressor();
+			fullCompressor.setRemoveIntertagSpaces(true);
+			fullCompressor.setCompressJavaScript(true);
+			fullCompressor.setCompressCss(true);
+
+			XmlCompressor xmlCompressor = new XmlCompressor();
+
+			List<String> samples = pages.isEmpty() ? Collections.singletonList(SAMPLE_PAGE) : pages;
+
+			for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+				for (String page : samples) {
+					compress(defaultCompressor, page);
+					compress(fullCompressor, page);
+				}
+				compress(xmlCompressor, SAMPLE_XML);
+			}
+		} finally {
+			elapsedTime = System.currentTimeMillis() - start;
+			finished = true;
+		}
+	}
+
+	private void compress(Compressor compressor, String content) {
+		try {
+			compressor.compress(content);
+		} catch (Exception e) {
+			//pages that fail to compress still warm up the code up to the failure
+			failed++;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> once warm-up has finished.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns the number of milliseconds warm-up took, or <code>-1</code> if it has not finished.
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	/**
+	 * Returns the number of compressions that failed during warm-up.
+	 */
+	public int getFailed() {
+		return failed;
+	}
+}
@@ -0,0 +1,181 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds every occurrence of a set of keywords in a single pass,
+ * ignoring ASCII case. Keywords are ASCII, so any other character takes the automaton back
+ * to its initial state. The automaton is immutable once built and can be shared between threads.
+ */
+final class ConstructFinder {
+
+	private static final int ALPHABET = 128;
+
+	private final int[] lengths;
+
+	//first character shared by all keywords if it has a single case, 0 otherwise
+	private final char first;
+
+	//transitions of every state on every folded character, states * ALPHABET entries
+	private final int[] next;
+
+	//keywords recognized on entering each state, shortest suffix last
+	private final int[][] outputs;
+
+	/**
+	 * @param keywords lower case ASCII keywords, the index of each is reported with its occurrences
+	 */
+	ConstructFinder(String[] keywords) {
+		lengths = new int[keywords.length];
+
+		char shared = keywords.length > 0 && keywords[0].length() > 0 ? keywords[0].charAt(0) : 0;
+		for (String keyword : keywords) {
+			if (keyword.length() == 0 || keyword.charAt(0) != shared) {
+				shared = 0;
+			}
+		}
+		first = fold(shared) == shared && (shared < 'a' || shared > 'z') ? shared : 0;
+
+		//trie of all keywords
+		List<int[]> children = new ArrayList<int[]>();
+		List<List<Integer>> found = new ArrayList<List<Integer>>();
+		children.add(newState());
+		found.add(new ArrayList<Integer>());
+
+		for (int k = 0; k < keywords.length; k++) {
+			String keyword = keywords[k];
+			lengths[k] = keyword.length();
+
+			int state = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				char c = fold(keyword.charAt(i));
+				if (c >= ALPHABET) {
+					throw new IllegalArgumentException("Keyword is not ASCII: " + keyword);
+				}
+				if (children.get(state)[c] < 0) {
+					children.get(state)[c] = children.size();
+					children.add(newState());
+					found.add(new ArrayList<Integer>());
+				}
+				state = children.get(state)[c];
+			}
+			found.get(state).add(Integer.valueOf(k));
+		}
+
+		//turn the trie into a complete transition table, breadth first so failure states are done first
+		int states = children.size();
+		next = new int[states * ALPHABET];
+		int[] failure = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+
+		for (int c = 0; c < ALPHABET; c++) {
+			int child = children.get(0)[c];
+			if (child > 0) {
+				failure[child] = 0;
+				queue[tail++] = child;
+				next[c] = child;
+			}
+		}
+
+		while (head < tail) {
+			int state = queue[head++];
+			found.get(state).addAll(found.get(failure[state]));
+
+			for (int c = 0; c < ALPHABET; c++) {
+				int child = children.get(state)[c];
+				if (child > 0) {
+					failure[child] = next[failure[state] * ALPHABET + c];
+					queue[tail++] = child;
+					next[state * ALPHABET + c] = child;
+				} else {
+					next[state * ALPHABET + c] = next[failure[state] * ALPHABET + c];
+				}
+			}
+		}
+
+		outputs = new int[states][];
+		for (int state = 0; state < states; state++) {
+			List<Integer> keys = found.get(state);
+			outputs[state] = new int[keys.size()];
+			for (int i = 0; i < keys.size(); i++) {
+				outputs[state][i] = keys.get(i).intValue();
+			}
+		}
+	}
+
+	/**
+	 * Finds all keyword occurrences, overlapping ones included.
+	 *
+	 * @param text text to search
+	 * @return occurrences ordered by start index and then keyword index, each encoded as
+	 * <code>start << 32 | keyword</code>
+	 */
+	long[] findAll(String text) {
+		long[] found = new long[16];
+		int count = 0;
+
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (state == 0 && first != 0) {
+				//only the shared first character leaves the initial state, skip to it
+				i = text.indexOf(first, i);
+				if (i < 0) {
+					break;
+				}
+			}
+
+			char c = fold(text.charAt(i));
+			state = c < ALPHABET ? next[state * ALPHABET + c] : 0;
+
+			int[] keys = outputs[state];
+			for (int j = 0; j < keys.length; j++) {
+				if (count == found.length) {
+					long[] grown = new long[count * 2];
+					System.arraycopy(found, 0, grown, 0, count);
+					found = grown;
+				}
+
+				//reported in order of end index, move it back behind the occurrences that start later
+				long occurrence = ((long) (i - lengths[keys[j]] + 1) << 32) | keys[j];
+				int k = count++;
+				while (k > 0 && found[k - 1] > occurrence) {
+					found[k] = found[k - 1];
+					k--;
+				}
+				found[k] = occurrence;
+			}
+		}
+
+		long[] result = new long[count];
+		System.arraycopy(found, 0, result, 0, count);
+		return result;
+	}
+
+	private static int[] newState() {
+		int[] state = new int[ALPHABET];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	private static char fold(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+}
@@ -19,8 +19,15 @@ import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.lang.Math;
@@ -28,19 +35,24 @@ import java.lang.Math;
 /**
  * Class that compresses given HTML source by removing comments, extra spaces and 
  * line breaks while preserving content within &lt;pre>, &lt;textarea>, &lt;script> 
- * and &lt;style> tags. Can optionally compress content inside &lt;script> 
- * or &lt;style> tags using 
+ * and &lt;style> tags, as well as custom tags set with {@link #setPreserveTags(String[])}. 
+ * Can optionally compress content inside &lt;script> or &lt;style> tags using 
  * <a href="http://developer.yahoo.com/yui/compressor/">Yahoo YUI Compressor</a> 
- * library.
+ * library. The number of threads running YUI Compressor at the same time can be
+ * limited across the JVM, see {@link Bulkhead#getYuiBulkhead()}, or per compressor with 
+ * {@link #setYuiBulkhead(Bulkhead)}. Blocks that would exceed the limit are only trimmed of empty space. UTF-8 encoded HTML can be compressed as bytes with {@link #compress(ByteBuffer)}.
  * 
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
-public class JspCompressor implements Compressor {
+public class JspCompressor implements Utf8Compressor {
     
     private boolean enabled = true;
 
-    private int total = 0;
-    private int failed = 0;
+    // counters are shared by all threads using this instance
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger degraded = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
 
     
     //default settings
@@ -56,6 +68,13 @@ public class JspCompressor implements Compressor {
     private boolean compressCss = false;
     private boolean debugMode = false;
     private boolean failOnError = false;
+    private long timeBudget = -1;
+    private Bulkhead yuiBulkhead = null;
+    
+    //custom preserved tags, found by the same scanner as the blocks preserved by default
+    private String[] preserveTags = new String[0];
+    private BlockPattern[] preserveTagPatterns = new BlockPattern[0];
+    private RegionScanner regionScanner = preservedRegions;
     
     //YUICompressor settings
     private boolean yuiJsNoMunge = false;
@@ -72,6 +91,9 @@ public class JspCompressor implements Compressor {
     private static final String tempJSPBlock = "%%%COMPRESS~JSP~#%%%";
     private static final String tempJSPAssignBlock = "%%%COMPRESS~JSPASSIGN~#%%%";
     private static final String tempStrutsFormCommentBlock = "%%%COMPRESS~STRUTSFORMCOMMENT~#%%%";
+    private static final String tempPreserveTagBlock = "%%%COMPRESS~PRESERVETAG~#%%%";
+    private static final String tempBlockStart = "%%%COMPRESS~";
+    private static final String tempBlockEnd = "%%%";
     private static final String tempJavaScriptBlock = "___COMPRESSJAVASCRIPTJSP_#___";
     private static final String tempJavaScriptJSPELBlock = "___COMPRESSJAVASCRIPTJSPEL_#___";	
     private static final String tempJSTagBlock = "___COMPRESSJAVASCRIPTTAG_#___";
@@ -81,15 +103,7 @@ public class JspCompressor implements Compressor {
     // for a struts 1.0 bug that we use. 
     private static final Pattern commentMarkersInScript = Pattern.compile("(<!--)(.*?)(\\/\\/[ \\t]*-->)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     private static final Pattern commentStrutsFormCommentPattern = Pattern.compile("<!--[^\\[].*?html:form[^>]*?>.*?-->", Pattern.CASE_INSENSITIVE);
-    private static final Pattern commentPattern = Pattern.compile("<!--[^\\[].*?-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern jspCommentPattern = Pattern.compile("<%--.+?--%>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern intertagPattern = Pattern.compile(">[ \\t\\n\\r]+?<", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern multispacePattern = Pattern.compile("\\s{2,}", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern prePattern = Pattern.compile("<pre[^>]*?>.*?</pre>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern taPattern = Pattern.compile("<textarea[^>]*?>.*?</textarea>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tagquotePattern = Pattern.compile("\\s*=\\s*([\"'])([a-z0-9-_]+?)\\1(?=[^<]*?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern scriptPattern = Pattern.compile("<script[^>]*?>.*?</script>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern stylePattern = Pattern.compile("<style[^>]*?>.*?</style>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern tagNamePattern = Pattern.compile("[a-z][a-z0-9_.:-]*");
     private static final Pattern scriptPatternNonEmpty = Pattern.compile("<script[^>]*?>(.+?)</script>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     private static final Pattern stylePatternNonEmpty = Pattern.compile("<style[^>]*?>(.+?)</style>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     /*
@@ -99,21 +113,41 @@ public class JspCompressor implements Compressor {
     private static final Pattern jsTagPattern = Pattern.compile("(<[a-z0-9]+?:[a-z0-9]+?[^>]*?>|</[a-z0-9]+?:[a-z0-9]+?[^>]*?>)", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
    
     // JSP and js block patterns used to strip leading and trailing space, as well as empty lines.
-    private static final Pattern jspAssignPattern = Pattern.compile("<%=.*?%>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern jspPattern = Pattern.compile("<%[^-=@].*?%>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     private static final Pattern jspELPattern = Pattern.compile("\\$\\{.*?\\}", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);	
     private static final Pattern jsLeadingSpacePattern = Pattern.compile("^[ \\t]+", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
     private static final Pattern jsTrailingSpacePattern = Pattern.compile("[ \\t]+$", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
     private static final Pattern jsEmptyLinePattern = Pattern.compile("^$\\n", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
-    private static final Pattern jspAllPattern = Pattern.compile("<%[^-@].*?%>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static final Pattern tempPrePattern = Pattern.compile("%%%COMPRESS~PRE~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempTextAreaPattern = Pattern.compile("%%%COMPRESS~TEXTAREA~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempScriptPattern = Pattern.compile("%%%COMPRESS~SCRIPT~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempStylePattern = Pattern.compile("%%%COMPRESS~STYLE~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempJSPPattern = Pattern.compile("%%%COMPRESS~JSP~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempJSPAssignPattern = Pattern.compile("%%%COMPRESS~JSPASSIGN~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-    private static final Pattern tempStrutsFormCommentPattern = Pattern.compile("%%%COMPRESS~STRUTSFORMCOMMENT~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    // Blocks found with linear scans rather than lazy regular expressions, which rescan the rest of
+    // the page for every unterminated "<!--" or "<%". Each matches exactly what the expression next to it does.
+    private static final BlockPattern commentPattern = new BlockPattern("<!--", "[", false, 0, "-->");         // <!--[^\[].*?-->
+    private static final BlockPattern jspCommentPattern = new BlockPattern("<%--", null, false, 1, "--%>");     // <%--.+?--%>
+    private static final BlockPattern prePattern = new BlockPattern("<pre", null, true, 0, "</pre>");           // <pre[^>]*?>.*?</pre>
+    private static final BlockPattern taPattern = new BlockPattern("<textarea", null, true, 0, "</textarea>");  // <textarea[^>]*?>.*?</textarea>
+    private static final BlockPattern scriptPattern = new BlockPattern("<script", null, true, 0, "</script>");  // <script[^>]*?>.*?</script>
+    private static final BlockPattern stylePattern = new BlockPattern("<style", null, true, 0, "</style>");     // <style[^>]*?>.*?</style>
+    private static final BlockPattern jspAssignPattern = new BlockPattern("<%=", null, false, 0, "%>");         // <%=.*?%>
+    private static final BlockPattern jspPattern = new BlockPattern("<%", "-=@", false, 0, "%>");              // <%[^-=@].*?%>
+    private static final BlockPattern jspAllPattern = new BlockPattern("<%", "-@", false, 0, "%>");            // <%[^-@].*?%>
+
+    // Finds all preserved blocks in one pass, in the order they used to be preserved in
+    private static final BlockPattern[] preservedPatterns = {scriptPattern, jspAssignPattern, jspPattern, prePattern, stylePattern, taPattern};
+    private static final String[] tempPreservedBlocks = {tempScriptBlock, tempJSPAssignBlock, tempJSPBlock, tempPreBlock, tempStyleBlock, tempTextAreaBlock};
+    private static final RegionScanner preservedRegions = new RegionScanner(preservedPatterns, tempPreservedBlocks);
+
+    // character classes of the whitespace collapser, \s and the [ \t\n\r] intertag whitespace
+    private static final byte SPACE = 1;
+    private static final byte INTERTAG_SPACE = 2;
+    private static final byte[] charClasses = new byte[128];
+    static {
+        charClasses[' '] = SPACE | INTERTAG_SPACE;
+        charClasses['\t'] = SPACE | INTERTAG_SPACE;
+        charClasses['\n'] = SPACE | INTERTAG_SPACE;
+        charClasses['\r'] = SPACE | INTERTAG_SPACE;
+        charClasses['\u000B'] = SPACE;
+        charClasses['\f'] = SPACE;
+    }
+
     private static final Pattern tempJavaScriptJSPPattern = Pattern.compile("___COMPRESSJAVASCRIPTJSP_(\\d+?)___", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
     private static final Pattern tempJavaScriptJSPELPattern = Pattern.compile("___COMPRESSJAVASCRIPTJSPEL_(\\d+?)___", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);	
     private static final Pattern tempJSTagPattern = Pattern.compile("___COMPRESSJAVASCRIPTTAG_(\\d+?)___", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
@@ -121,17 +155,38 @@ public class JspCompressor implements Compressor {
     
     /**
      * The main method that compresses given HTML source and returns compressed result.
+     * The configured time budget, if any, applies.
      * 
      * @param html HTML content to compress
      * @return compressed content.
      * @throws Exception
+     * @see #setTimeBudget(long)
      */
     public String compress(String html) throws Exception {
+        return compress(html, timeBudget);
+    }
+
+    /**
+     * Compresses given HTML source within a time budget. Once the budget is used up, remaining
+     * &lt;script> blocks are only trimmed of empty space and remaining &lt;style> blocks are
+     * left as they are instead of being compressed with YUI Compressor. Such calls are counted 
+     * by {@link #getDegraded()}. A block that is already being compressed when the budget runs 
+     * out is finished.
+     * 
+     * @param html HTML content to compress
+     * @param timeBudget time budget in milliseconds, <code>-1</code> for no budget
+     * @return compressed content.
+     * @throws Exception
+     */
+    public String compress(String html, long timeBudget) throws Exception {
         
         if(!enabled || html == null || html.length() == 0) {
             return html;
         }
         
+        long start = System.nanoTime();
+        long budget = timeBudget >= 0 ? timeBudget * 1000000L : -1;
+        
         //preserved block containers
         List<String> preBlocks = new ArrayList<String>();
         List<String> taBlocks = new ArrayList<String>();
@@ -140,24 +195,101 @@ public class JspCompressor implements Compressor {
         List<String> jspBlocks = new ArrayList<String>();
         List<String> jspAssignBlocks = new ArrayList<String>();
         List<String> strutsFormCommentBlocks = new ArrayList<String>();
+        List<List<String>> preserveTagBlocks = new ArrayList<List<String>>();
+        for (int i = 0; i < preserveTagPatterns.length; i++) {
+            preserveTagBlocks.add(new ArrayList<String>());
+        }
         
         //preserve blocks
-        html = preserveBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, jspBlocks, jspAssignBlocks, strutsFormCommentBlocks);
+        html = preserveBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, jspBlocks, jspAssignBlocks, strutsFormCommentBlocks, preserveTagBlocks);
 
         //process pure html
         html = processHtml(html);
 
         //process preserved blocks
-        processScriptBlocks(scriptBlocks);
-        processStyleBlocks(styleBlocks);
+        Bulkhead bulkhead = yuiBulkhead != null ? yuiBulkhead : Bulkhead.getYuiBulkhead();
+        boolean withinBudget = processScriptBlocks(scriptBlocks, start, budget, bulkhead);
+        withinBudget &= processStyleBlocks(styleBlocks, start, budget, bulkhead);
         processJSPBlocks(jspBlocks);
         
+        if (!withinBudget) {
+            degraded.incrementAndGet();
+        }
+        
         //put blocks back
-        html = returnBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, jspBlocks, jspAssignBlocks, strutsFormCommentBlocks);
+        html = returnBlocks(html, preBlocks, taBlocks, scriptBlocks, styleBlocks, jspBlocks, jspAssignBlocks, strutsFormCommentBlocks, preserveTagBlocks);
         
         return html.trim();
     }
 
+    /**
+     * Compresses UTF-8 encoded HTML. The configured time budget, if any, applies.
+     * 
+     * @param html UTF-8 encoded HTML content to compress, from its position to its limit
+     * @return compressed content.
+     * @throws Exception
+     * @see #compress(ByteBuffer, long)
+     */
+    public ByteBuffer compress(ByteBuffer html) throws Exception {
+        return compress(html, timeBudget);
+    }
+
+    /**
+     * Compresses UTF-8 encoded HTML within a time budget, without decoding it in most cases. 
+     * Everything the compressor looks for is ASCII and bytes of multi-byte sequences never are, 
+     * so the bytes are compressed as ISO-8859-1 characters, one character per byte, and multi-byte 
+     * sequences are copied through as they are. The bytes are decoded as UTF-8 only when that could 
+     * give a different result: when YUI Compressor is enabled and the content is not ASCII, or when
+     * the content contains one of the non-ASCII line terminators.
+     * 
+     * @param html UTF-8 encoded HTML content to compress, from its position to its limit
+     * @param timeBudget time budget in milliseconds, <code>-1</code> for no budget
+     * @return compressed content.
+     * @throws Exception
+     * @see #compress(String, long)
+     */
+    public ByteBuffer compress(ByteBuffer html, long timeBudget) throws Exception {
+        if(!enabled || html == null || !html.hasRemaining()) {
+            return html == null ? null : html.slice();
+        }
+
+        byte[] bytes = new byte[html.remaining()];
+        html.duplicate().get(bytes);
+
+        String charset = isByteTransparent(bytes) ? "ISO-8859-1" : "UTF-8";
+        try {
+            return ByteBuffer.wrap(compress(new String(bytes, charset), timeBudget).getBytes(charset));
+        } catch (UnsupportedEncodingException e) {
+            //both are required to be supported
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /*
+     * Returns true if compressing the bytes as ISO-8859-1 characters gives the bytes of compressing 
+     * the decoded text. YUI Compressor has to see the actual characters, and regular expressions that 
+     * match line by line also end lines at U+0085, U+2028 and U+2029. The first is the byte 0x85 in 
+     * ISO-8859-1, the others don't exist there.
+     */
+    private boolean isByteTransparent(byte[] bytes) {
+        boolean yui = compressJavaScript || compressCss;
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i];
+            if (b >= 0) {
+                continue;
+            }
+            if (yui || b == (byte) 0x85) {
+                return false;
+            }
+            //U+2028 and U+2029 are E2 80 A8 and E2 80 A9
+            if (b == (byte) 0xE2 && i + 2 < bytes.length && bytes[i + 1] == (byte) 0x80 
+                    && (bytes[i + 2] == (byte) 0xA8 || bytes[i + 2] == (byte) 0xA9)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private String preserveBlocks(String html, Pattern thePattern, String tempBlock, List<String> theBlocks) {
         Matcher matcher = null;
         StringBuffer sb = null;
@@ -177,6 +309,10 @@ public class JspCompressor implements Compressor {
         return(sb.toString());
     }
     
+    private String preserveBlocks(String html, BlockPattern thePattern, String tempBlock, List<String> theBlocks) {
+        return thePattern.preserve(html, tempBlock, theBlocks);
+    }
+    
     private String returnBlocks(String html, Pattern thePattern, List<String> theBlocks) {
         Matcher matcher = thePattern.matcher(html);
         StringBuffer sb = new StringBuffer();
@@ -189,6 +325,10 @@ public class JspCompressor implements Compressor {
         return(sb.toString());
     }
     
+    private static String tempPreserveTagBlock(int tag) {
+        return tempPreserveTagBlock.replace("#", tag + "~#");
+    }
+    
     private String preserveBlocks(String html,
                                   List<String> preBlocks,
                                   List<String> taBlocks,
@@ -196,15 +336,29 @@ public class JspCompressor implements Compressor {
                                   List<String> styleBlocks,
                                   List<String>jspBlocks,
                                   List<String>jspAssignBlocks,
-                                  List<String> strutsFormCommentBlocks) {
+                                  List<String> strutsFormCommentBlocks,
+                                  List<List<String>> preserveTagBlocks) {
         
         // preserve JSP variable references
-        html = preserveBlocks(html, scriptPattern, tempScriptBlock, scriptBlocks);
-        html = preserveBlocks(html, jspAssignPattern, tempJSPAssignBlock, jspAssignBlocks);
-        html = preserveBlocks(html, jspPattern, tempJSPBlock, jspBlocks);
-        html = preserveBlocks(html, prePattern, tempPreBlock, preBlocks);
-        html = preserveBlocks(html, stylePattern, tempStyleBlock, styleBlocks);
-        html = preserveBlocks(html, taPattern, tempTextAreaBlock, taBlocks);
+        List<List<String>> blocks = new ArrayList<List<String>>(preservedPatterns.length + preserveTagBlocks.size());
+        blocks.addAll(Arrays.asList(scriptBlocks, jspAssignBlocks, jspBlocks, preBlocks, styleBlocks, taBlocks));
+        blocks.addAll(preserveTagBlocks);
+        String preserved = regionScanner.preserve(html, blocks);
+        
+        if (preserved != null) {
+            html = preserved;
+        } else {
+            // blocks overlap in ways only one pass per kind of block handles
+            html = preserveBlocks(html, scriptPattern, tempScriptBlock, scriptBlocks);
+            html = preserveBlocks(html, jspAssignPattern, tempJSPAssignBlock, jspAssignBlocks);
+            html = preserveBlocks(html, jspPattern, tempJSPBlock, jspBlocks);
+            html = preserveBlocks(html, prePattern, tempPreBlock, preBlocks);
+            html = preserveBlocks(html, stylePattern, tempStyleBlock, styleBlocks);
+            html = preserveBlocks(html, taPattern, tempTextAreaBlock, taBlocks);
+            for (int i = 0; i < preserveTagPatterns.length; i++) {
+                html = preserveBlocks(html, preserveTagPatterns[i], tempPreserveTagBlock(i), preserveTagBlocks.get(i));
+            }
+        }
 
         if (skipCommentsWithStrutsForm) {
             html = preserveBlocks(html, commentStrutsFormCommentPattern, tempStrutsFormCommentBlock, strutsFormCommentBlocks);
@@ -220,24 +374,71 @@ public class JspCompressor implements Compressor {
                                 List<String> styleBlocks,
                                 List<String> jspBlocks,
                                 List<String> jspAssignBlocks,
-                                List<String> strutsFormCommentBlocks) {
-
-        html = returnBlocks(html, tempStrutsFormCommentPattern, strutsFormCommentBlocks); 
-        html = returnBlocks(html, tempTextAreaPattern, taBlocks);
-        html = returnBlocks(html, tempStylePattern, styleBlocks);
-        html = returnBlocks(html, tempScriptPattern, scriptBlocks);
-        html = returnBlocks(html, tempPrePattern, preBlocks);
-        html = returnBlocks(html, tempJSPPattern, jspBlocks);      
-        html = returnBlocks(html, tempJSPAssignPattern, jspAssignBlocks);  
-        html = returnBlocks(html, tempScriptPattern, scriptBlocks);
-         
+                                List<String> strutsFormCommentBlocks,
+                                List<List<String>> preserveTagBlocks) {
+
+        if (html.indexOf(tempBlockStart) < 0) {
+            return(html);
+        }
         
-        //remove inter-tag spaces
-        if(removeIntertagSpaces) {
-            html = intertagPattern.matcher(html).replaceAll("><");
+        //blocks by the kind named in their placeholders
+        Map<String, List<String>> blocks = new HashMap<String, List<String>>();
+        blocks.put("PRE", preBlocks);
+        blocks.put("TEXTAREA", taBlocks);
+        blocks.put("SCRIPT", scriptBlocks);
+        blocks.put("STYLE", styleBlocks);
+        blocks.put("JSP", jspBlocks);
+        blocks.put("JSPASSIGN", jspAssignBlocks);
+        blocks.put("STRUTSFORMCOMMENT", strutsFormCommentBlocks);
+        for (int i = 0; i < preserveTagBlocks.size(); i++) {
+            blocks.put("PRESERVETAG~" + i, preserveTagBlocks.get(i));
         }
-
-        return(html);
+        
+        StringBuilder sb = new StringBuilder(html.length() * 2);
+        appendBlocks(sb, html, blocks);
+        return(sb.toString());
+    }
+    
+    /*
+     * Appends text with its placeholders replaced by their blocks in a single pass. A block only 
+     * contains placeholders of blocks that were preserved before it, which are put back as well.
+     */
+    private static void appendBlocks(StringBuilder sb, String text, Map<String, List<String>> blocks) {
+        int last = 0;
+        for (int start = text.indexOf(tempBlockStart); start >= 0; start = text.indexOf(tempBlockStart, start + 1)) {
+            int end = text.indexOf(tempBlockEnd, start + tempBlockStart.length());
+            if (end < 0) {
+                break;
+            }
+            
+            int tilde = text.lastIndexOf('~', end);
+            List<String> theBlocks = blocks.get(text.substring(start + tempBlockStart.length(), Math.max(tilde, start + tempBlockStart.length())));
+            int index = parseIndex(text, tilde + 1, end);
+            if (theBlocks == null || index < 0 || index >= theBlocks.size()) {
+                continue;
+            }
+            
+            sb.append(text, last, start);
+            appendBlocks(sb, theBlocks.get(index), blocks);
+            last = end + tempBlockEnd.length();
+            start = last - 1;
+        }
+        sb.append(text, last, text.length());
+    }
+    
+    private static int parseIndex(String text, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
     }
 
 
@@ -245,32 +446,169 @@ public class JspCompressor implements Compressor {
         // remove comments and JSP comments, if specified.
 
         if(this.removeComments) {
-            html = commentPattern.matcher(html).replaceAll("");
+            html = commentPattern.remove(html);
         }
         
         if (this.removeJspComments) {
-            html = jspCommentPattern.matcher(html).replaceAll("");
+            html = jspCommentPattern.remove(html);
         }
         
-        //remove inter-tag spaces
-        if(removeIntertagSpaces) {
-            html = intertagPattern.matcher(html).replaceAll("><");
-        }
-        
-        //remove multi whitespace characters
-        if(removeMultiSpaces) {
-            html = multispacePattern.matcher(html).replaceAll(" ");
+        //remove inter-tag spaces and multi whitespace characters
+        if(removeIntertagSpaces || removeMultiSpaces) {
+            html = collapseSpaces(html, removeMultiSpaces, removeIntertagSpaces);
         }
         
         //remove quotes from tag attributes
         if(removeQuotes) {
-            html = tagquotePattern.matcher(html).replaceAll("=$2");
+            html = removeQuotes(html);
         }
         
         return html;
     }
     
-    private void processScriptBlocks(List<String> scriptBlocks) throws Exception {
+    /*
+     * Collapses runs of two or more whitespace characters to a single space, like \s{2,} does, and
+     * removes [ \t\n\r] runs between tags in the same pass. Placeholders count as tags, since every
+     * preserved block starts with '<' and ends with '>', which leaves the content of preserved 
+     * blocks alone while removing the whitespace around them. A run that is collapsed to a single
+     * space between tags is removed too.
+     */
+    private static String collapseSpaces(String html, boolean removeMultiSpaces, boolean removeIntertagSpaces) {
+        char[] chars = html.toCharArray();
+        int length = chars.length;
+        StringBuilder sb = null;
+        int last = 0;
+        boolean afterTag = false;
+        int i = 0;
+        
+        while (i < length) {
+            char c = chars[i];
+            if (c >= 128 || (charClasses[c] & SPACE) == 0) {
+                if (c == '%' && startsWith(chars, i, tempBlockStart)) {
+                    int end = html.indexOf(tempBlockEnd, i + tempBlockStart.length());
+                    if (end >= 0) {
+                        i = end + tempBlockEnd.length();
+                        afterTag = true;
+                        continue;
+                    }
+                }
+                afterTag = c == '>';
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            int classes = charClasses[c];
+            while (end < length && chars[end] < 128 && (charClasses[chars[end]] & SPACE) != 0) {
+                classes &= charClasses[chars[end]];
+                end++;
+            }
+            
+            boolean multi = removeMultiSpaces && end - i > 1;
+            boolean intertag = removeIntertagSpaces && afterTag && end < length 
+                    && (chars[end] == '<' || startsWith(chars, end, tempBlockStart))
+                    && ((classes & INTERTAG_SPACE) != 0 || multi);
+            if (intertag || multi) {
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(chars, last, i - last);
+                if (!intertag) {
+                    sb.append(' ');
+                }
+                last = end;
+            }
+            afterTag = false;
+            i = end;
+        }
+
+        if (sb == null) {
+            return html;
+        }
+        return sb.append(chars, last, length - last).toString();
+    }
+
+    private static boolean startsWith(char[] chars, int offset, String prefix) {
+        if (offset + prefix.length() > chars.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (chars[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Removes quotes around attribute values that don't need them, like replacing
+     * \s*=\s*(["'])([a-z0-9-_]+?)\1(?=[^<]*?>) with =$2 does. The lookahead is resolved by 
+     * remembering the next angle bracket, so the text after each attribute is scanned only once.
+     */
+    private static String removeQuotes(String html) {
+        StringBuilder sb = null;
+        int last = 0;
+        int angle = -1;
+
+        for (int eq = html.indexOf('='); eq >= 0; eq = html.indexOf('=', eq + 1)) {
+            int quote = eq + 1;
+            while (quote < html.length() && isSpace(html.charAt(quote))) {
+                quote++;
+            }
+            if (quote >= html.length() || (html.charAt(quote) != '"' && html.charAt(quote) != '\'')) {
+                continue;
+            }
+
+            int end = quote + 1;
+            while (end < html.length() && isValueChar(html.charAt(end))) {
+                end++;
+            }
+            if (end == quote + 1 || end >= html.length() || html.charAt(end) != html.charAt(quote)) {
+                continue;
+            }
+
+            //must be within a tag, the next angle bracket is a closing one
+            if (angle <= end) {
+                angle = end + 1;
+                while (angle < html.length() && html.charAt(angle) != '<' && html.charAt(angle) != '>') {
+                    angle++;
+                }
+            }
+            if (angle >= html.length() || html.charAt(angle) != '>') {
+                continue;
+            }
+
+            int start = eq;
+            while (start > last && isSpace(html.charAt(start - 1))) {
+                start--;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(html.length());
+            }
+            sb.append(html, last, start).append('=').append(html, quote + 1, end);
+            last = end + 1;
+            eq = end;
+        }
+
+        if (sb == null) {
+            return html;
+        }
+        return sb.append(html, last, html.length()).toString();
+    }
+
+    private static boolean isSpace(char c) {
+        return c < 128 && (charClasses[c] & SPACE) != 0;
+    }
+
+    private static boolean isValueChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    /**
+     * @return <code>false</code> if a block has not been compressed because the time budget was used up
+     */
+    private boolean processScriptBlocks(List<String> scriptBlocks, long start, long budget, Bulkhead bulkhead) throws Exception {
+        boolean withinBudget = true;
         List<String> jspBlocks = new ArrayList<String>();
         List<String> jspELBlocks = new ArrayList<String>();
 
@@ -285,13 +623,13 @@ public class JspCompressor implements Compressor {
             // Remove any JSP comments that might be in the javascript for security reasons
             // (developer only comments, etc)
 
-            scriptBlock = jspCommentPattern.matcher(scriptBlock).replaceAll("");
+            scriptBlock = jspCommentPattern.remove(scriptBlock);
             
             // remove any comment markers you might find in Javascript code (<!-- //-->)
             scriptBlock = commentMarkersInScript.matcher(scriptBlock).replaceAll("$2");
             
             // yes, HTML comments are sometimes found in Javascript.
-            scriptBlock = commentPattern.matcher(scriptBlock).replaceAll("");
+            scriptBlock = commentPattern.remove(scriptBlock);
 			            
             scriptBlock = preserveBlocks(scriptBlock, jspAllPattern, tempJavaScriptBlock, jspBlocks);
 
@@ -299,8 +637,11 @@ public class JspCompressor implements Compressor {
 
             if (!compressJavaScript) {
                 scriptBlock = trimEmptySpace(scriptBlock);
+            } else if (isOverBudget(start, budget)) {
+                scriptBlock = trimEmptySpace(scriptBlock);
+                withinBudget = false;
             } else {
-                scriptBlock = compressJavaScript(scriptBlock);
+                scriptBlock = compressJavaScript(scriptBlock, bulkhead);
             }
 
             scriptBlock = returnBlocks(scriptBlock, tempJavaScriptJSPPattern, jspBlocks);
@@ -323,6 +664,11 @@ public class JspCompressor implements Compressor {
             jspELBlocks.clear();
         }
 
+        return withinBudget;
+    }
+
+    private static boolean isOverBudget(long start, long budget) {
+        return budget >= 0 && System.nanoTime() - start >= budget;
     }
 
     /*
@@ -349,26 +695,38 @@ public class JspCompressor implements Compressor {
             
             // Remove any JSP comments that might be in the javascript for security reasons
             // (developer only comments, etc)
-            theBlock = jspCommentPattern.matcher(theBlock).replaceAll("");
+            theBlock = jspCommentPattern.remove(theBlock);
             theBlock = trimEmptySpace(theBlock);
             theBlocks.set(i, theBlock);
         }
     }
         
-    private void processStyleBlocks(List<String> styleBlocks) throws Exception {
+    /**
+     * @return <code>false</code> if a block has not been compressed because the time budget was used up
+     */
+    private boolean processStyleBlocks(List<String> styleBlocks, long start, long budget, Bulkhead bulkhead) throws Exception {
         if(compressCss) {
             for(int i = 0; i < styleBlocks.size(); i++) {
-                styleBlocks.set(i, compressCssStyles(styleBlocks.get(i)));
+                if (isOverBudget(start, budget)) {
+                    //remaining blocks are left as they are
+                    return false;
+                }
+                styleBlocks.set(i, compressCssStyles(styleBlocks.get(i), bulkhead));
             }
         }
+        return true;
     }
     
-    private String compressJavaScript(String source) throws Exception {
+    /**
+     * Compresses a script block with YUI Compressor, or only trims it of empty space if the
+     * bulkhead turns it away. Blocks that are empty or load a script are not sent to YUI Compressor.
+     */
+    private String compressJavaScript(String source, Bulkhead bulkhead) throws Exception {
         StringWriter result = new StringWriter();
         String originalSource = new String(source);
         String scriptBlock = null;
 
-        total++;
+        total.incrementAndGet();
         source = commentMarkersInScript.matcher(source).replaceAll("");
 
         //check if block is not empty
@@ -378,6 +736,12 @@ public class JspCompressor implements Compressor {
         if(scriptMatcher.find()) {
 
             if (source.indexOf("src=") == -1) {
+                if (bulkhead != null && !bulkhead.tryAcquire()) {
+                    //too many threads in YUI Compressor already, don't wait for them
+                    rejected.incrementAndGet();
+                    return(trimEmptySpace(originalSource));
+                }
+
                 //call YUICompressor
                 try {
                     List<String> tagBlocks = new ArrayList<String>();
@@ -400,13 +764,17 @@ public class JspCompressor implements Compressor {
 
                     scriptBlock = returnBlocks(result.toString(), tempJSTagPattern, tagBlocks);
                 } catch (Exception e) {
-                    failed++;
+                    failed.incrementAndGet();
 
                     if (failOnError) {
                         throw new Exception("Returning " + scriptBlock);
                     }
 
                     return(trimEmptySpace(originalSource));
+                } finally {
+                    if (bulkhead != null) {
+                        bulkhead.release();
+                    }
                 }
             } else {
                 return(trimEmptySpace(originalSource));
@@ -419,17 +787,31 @@ public class JspCompressor implements Compressor {
         }
     }
     
-    private String compressCssStyles(String source) throws Exception {
+    /**
+     * Compresses a style block with YUI Compressor, or only trims it of empty space if the
+     * bulkhead turns it away. Empty blocks are not sent to YUI Compressor.
+     */
+    private String compressCssStyles(String source, Bulkhead bulkhead) throws Exception {
         
         // check if block is not empty
         Matcher styleMatcher = stylePatternNonEmpty.matcher(source);
         
         if(styleMatcher.find()) {
+            if (bulkhead != null && !bulkhead.tryAcquire()) {
+                rejected.incrementAndGet();
+                return(trimEmptySpace(source));
+            }
             
             // call YUICompressor
             StringWriter result = new StringWriter();
-            CssCompressor compressor = new CssCompressor(new StringReader(styleMatcher.group(1)));
-            compressor.compress(result, yuiCssLineBreak);
+            try {
+                CssCompressor compressor = new CssCompressor(new StringReader(styleMatcher.group(1)));
+                compressor.compress(result, yuiCssLineBreak);
+            } finally {
+                if (bulkhead != null) {
+                    bulkhead.release();
+                }
+            }
 
             if (debugMode) {
                 int originalSize = styleMatcher.group(1).length();
@@ -766,6 +1148,69 @@ public class JspCompressor implements Compressor {
         this.removeIntertagSpaces = removeIntertagSpaces;
     }
 
+    /**
+     * Returns the names of the custom tags whose content is preserved.
+     * 
+     * @return tag names in lower case, empty if there are none
+     * @see #setPreserveTags(String[])
+     */
+    public String[] getPreserveTags() {
+        return preserveTags.clone();
+    }
+
+    /**
+     * Sets custom tags whose content is preserved like the content of &lt;pre> tags, for example
+     * <code>code</code>, <code>svg</code> or <code>jsp:text</code>. A block runs from a start tag
+     * to the first end tag of the same name, self-closing tags are left alone. Blocks of these tags
+     * are found in the same pass as the blocks preserved by default, so adding tags does not add 
+     * passes over the content. &lt;script>, &lt;style>, scriptlets and other preserved blocks within 
+     * them are processed as usual. Default is no custom tags.
+     * 
+     * @param preserveTags tag names, each entry may also list several names separated by commas
+     * or white space. Names are not case sensitive.
+     * @throws IllegalArgumentException if a tag name is not valid
+     */
+    public void setPreserveTags(String[] preserveTags) {
+        List<String> names = new ArrayList<String>();
+        for (String entry : preserveTags) {
+            for (String name : entry.split("[\\s,]+")) {
+                name = name.toLowerCase(Locale.ENGLISH);
+                if (name.length() == 0 || names.contains(name)) {
+                    continue;
+                }
+                if (!tagNamePattern.matcher(name).matches()) {
+                    throw new IllegalArgumentException("Invalid tag name: " + name);
+                }
+                names.add(name);
+            }
+        }
+        
+        if (names.isEmpty()) {
+            this.preserveTags = new String[0];
+            this.preserveTagPatterns = new BlockPattern[0];
+            this.regionScanner = preservedRegions;
+            return;
+        }
+        
+        //custom tags have the lowest priority, blocks preserved by default within them are processed as usual
+        int count = preservedPatterns.length;
+        BlockPattern[] patterns = new BlockPattern[count + names.size()];
+        String[] tempBlocks = new String[patterns.length];
+        System.arraycopy(preservedPatterns, 0, patterns, 0, count);
+        System.arraycopy(tempPreservedBlocks, 0, tempBlocks, 0, count);
+        
+        BlockPattern[] tagPatterns = new BlockPattern[names.size()];
+        for (int i = 0; i < tagPatterns.length; i++) {
+            tagPatterns[i] = BlockPattern.element(names.get(i));
+            patterns[count + i] = tagPatterns[i];
+            tempBlocks[count + i] = tempPreserveTagBlock(i);
+        }
+        
+        this.preserveTags = names.toArray(new String[names.size()]);
+        this.preserveTagPatterns = tagPatterns;
+        this.regionScanner = new RegionScanner(patterns, tempBlocks);
+    }
+
     /**
      * If set to <code>true</code> comments with the <html:form> opening and closing tags will be skipped
      * during comment removal.  This is a workaround for a Struts 1.0 bug, in which there were issues
@@ -790,7 +1235,69 @@ public class JspCompressor implements Compressor {
      * @return  Number of blocks that have failed Javascript compression
      */
     public int getFailed() {
-            return(failed);
+            return(failed.get());
+    }
+
+    /**
+     * Get number of calls that ran out of their time budget, so some &lt;script> or &lt;style> 
+     * blocks were not compressed with YUI Compressor.
+     * @return  Number of degraded calls
+     */
+    public int getDegraded() {
+        return(degraded.get());
+    }
+
+    /**
+     * Get number of &lt;script> and &lt;style> blocks that were only trimmed of empty space
+     * because the limit of concurrent YUI Compressor work was reached.
+     * @return  Number of blocks turned away by the bulkhead
+     * @see #setYuiBulkhead(Bulkhead)
+     */
+    public int getRejected() {
+        return(rejected.get());
+    }
+
+    /**
+     * Returns the bulkhead limiting YUI Compressor work of this compressor.
+     * 
+     * @return bulkhead, or <code>null</code> if the JVM wide {@link Bulkhead#getYuiBulkhead()} applies
+     */
+    public Bulkhead getYuiBulkhead() {
+        return yuiBulkhead;
+    }
+
+    /**
+     * Sets a bulkhead limiting the number of threads running YUI Compressor at the same time for 
+     * this compressor, instead of the JVM wide {@link Bulkhead#getYuiBulkhead()}. A bulkhead can be 
+     * shared by several compressors. Default is <code>null</code>.
+     * 
+     * @param yuiBulkhead bulkhead, or <code>null</code> to use the JVM wide limit
+     */
+    public void setYuiBulkhead(Bulkhead yuiBulkhead) {
+        this.yuiBulkhead = yuiBulkhead;
+    }
+
+    /**
+     * Returns the time budget in milliseconds of each call to {@link #compress(String)}.
+     * 
+     * @return time budget, <code>-1</code> if there is none
+     */
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Sets the time budget in milliseconds of each call to {@link #compress(String)}. Once a call 
+     * has taken this long, remaining &lt;script> and &lt;style> blocks are not compressed with 
+     * YUI Compressor, so JavaScript and CSS compression cannot hold up a response for long. 
+     * This option has effect only if JavaScript or CSS compression is enabled.
+     * Default is <code>-1</code> for no budget.
+     * 
+     * @param timeBudget time budget in milliseconds
+     * @see #compress(String, long)
+     */
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
     }
 
     /**
@@ -798,7 +1305,7 @@ public class JspCompressor implements Compressor {
      * @return  Total number of blocks processed on this run.
      */
     public int getTotal() {
-        return(total);
+        return(total.get());
     }
     
     /**
@@ -0,0 +1,195 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+/**
+ * Replaces preserved blocks of several kinds with placeholders in a single pass over the text.
+ * All block openings are found at once with a {@link ConstructFinder} and classified in document order.
+ *
+ * <p>The result is the same as replacing the blocks one kind after the other in order of priority,
+ * each kind with {@link BlockPattern#preserve(String, String, List)} on the text left by the
+ * kinds before it. A block of a higher priority inside a block of a lower priority becomes a placeholder
+ * within that block. Where blocks overlap in a way a single pass can't reproduce, such as a
+ * scriptlet that spans the end of a &lt;pre> block, no result is returned and the caller falls back
+ * to one pass per kind.
+ */
+final class RegionScanner {
+
+	private final BlockPattern[] patterns;
+	private final String[] tempBlocks;
+	private final ConstructFinder finder;
+
+	/**
+	 * @param patterns block kinds, highest priority first
+	 * @param tempBlocks placeholder of each kind with a '#' that is replaced with the block number
+	 */
+	RegionScanner(BlockPattern[] patterns, String[] tempBlocks) {
+		this.patterns = patterns;
+		this.tempBlocks = tempBlocks;
+
+		String[] keywords = new String[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			keywords[i] = patterns[i].getOpen();
+		}
+		this.finder = new ConstructFinder(keywords);
+	}
+
+	/**
+	 * Replaces all blocks with numbered placeholders.
+	 *
+	 * @param text text to search
+	 * @param blocks lists the blocks of each kind are added to
+	 * @return text with placeholders, or <code>null</code> if blocks overlap in a way that requires
+	 * one pass per kind, in which case no blocks are added
+	 */
+	String preserve(String text, List<List<String>> blocks) {
+		long[] occurrences = finder.findAll(text);
+		if (occurrences.length == 0) {
+			return text;
+		}
+
+		//blocks found so far, in document order
+		int count = 0;
+		int[] kinds = new int[16];
+		int[] starts = new int[16];
+		int[] contents = new int[16];
+		int[] closes = new int[16];
+		int[] ends = new int[16];
+		int[] parents = new int[16];
+
+		//blocks enclosing the current position, innermost last
+		int[] open = new int[16];
+		int depth = 0;
+
+		boolean[] exhausted = new boolean[patterns.length];
+		int[] bounds = new int[3];
+
+		for (int i = 0; i < occurrences.length; i++) {
+			int start = (int) (occurrences[i] >>> 32);
+			int kind = (int) occurrences[i];
+
+			if (exhausted[kind]) {
+				continue;
+			}
+
+			while (depth > 0 && ends[open[depth - 1]] <= start) {
+				depth--;
+			}
+
+			//within a block of the same or a higher priority the opening is part of that block
+			int parent = depth > 0 ? open[depth - 1] : -1;
+			if (parent >= 0 && kind >= kinds[parent]) {
+				continue;
+			}
+
+			int result = patterns[kind].match(text, start, bounds);
+			if (result == BlockPattern.NO_BLOCK) {
+				continue;
+			} else if (result == BlockPattern.UNTERMINATED) {
+				//no later block of this kind can be closed either
+				exhausted[kind] = true;
+				continue;
+			}
+
+			//a nested block must lie within the content of its parent, or its placeholder would
+			//have changed where the parent starts or ends. Placeholders start and end with '%', which
+			//could also have become part of a "<%" or "%>" next to them.
+			if (parent >= 0 && (start < contents[parent] || bounds[2] > closes[parent])) {
+				return null;
+			}
+			if ((start > 0 && text.charAt(start - 1) == '<') || (bounds[2] < text.length() && text.charAt(bounds[2]) == '>')) {
+				return null;
+			}
+
+			if (count == kinds.length) {
+				kinds = grow(kinds);
+				starts = grow(starts);
+				contents = grow(contents);
+				closes = grow(closes);
+				ends = grow(ends);
+				parents = grow(parents);
+			}
+			kinds[count] = kind;
+			starts[count] = start;
+			contents[count] = bounds[0];
+			closes[count] = bounds[1];
+			ends[count] = bounds[2];
+			parents[count] = parent;
+
+			if (depth == open.length) {
+				open = grow(open);
+			}
+			open[depth++] = count++;
+		}
+
+		if (count == 0) {
+			return text;
+		}
+
+		//blocks of each kind are numbered in document order, like one pass per kind would number them
+		int[] numbers = new int[count];
+		int[] next = new int[patterns.length];
+		for (int b = 0; b < count; b++) {
+			numbers[b] = next[kinds[b]]++;
+		}
+
+		//replace blocks with placeholders, each block within its parent
+		StringBuilder[] builders = new StringBuilder[count];
+		int[] copied = new int[count];
+		StringBuilder result = new StringBuilder(text.length());
+		int resultCopied = 0;
+
+		for (int b = 0; b < count; b++) {
+			builders[b] = new StringBuilder(ends[b] - starts[b]);
+			copied[b] = starts[b];
+
+			int parent = parents[b];
+			StringBuilder target = parent >= 0 ? builders[parent] : result;
+			int from = parent >= 0 ? copied[parent] : resultCopied;
+
+			target.append(text, from, starts[b]);
+			appendPlaceholder(target, tempBlocks[kinds[b]], numbers[b]);
+			if (parent >= 0) {
+				copied[parent] = ends[b];
+			} else {
+				resultCopied = ends[b];
+			}
+		}
+
+		String[] contentsOf = new String[count];
+		for (int b = 0; b < count; b++) {
+			contentsOf[b] = builders[b].append(text, copied[b], ends[b]).toString();
+		}
+		result.append(text, resultCopied, text.length());
+
+		for (int b = 0; b < count; b++) {
+			blocks.get(kinds[b]).add(contentsOf[b]);
+		}
+		return result.toString();
+	}
+
+	private static void appendPlaceholder(StringBuilder sb, String tempBlock, int number) {
+		int hash = tempBlock.indexOf('#');
+		sb.append(tempBlock, 0, hash).append(number).append(tempBlock, hash + 1, tempBlock.length());
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
@@ -0,0 +1,156 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scanning primitives shared by the compressors. Searches start from a single delimiter character
+ * found with {@link String#indexOf(int, int)}, which current JVMs compile to vectorized code, so the
+ * plain text between delimiters is skipped many characters at a time while the code itself stays
+ * plain Java. The byte variants search UTF-8 text in a {@link ByteBuffer} by absolute index, which
+ * works the same for heap, direct and mapped buffers. Every character searched for is ASCII and the
+ * bytes of multi-byte sequences never are, so a match is never found within such a sequence.
+ */
+final class TextScanner {
+
+	private TextScanner() {
+	}
+
+	/**
+	 * Returns <code>true</code> for the whitespace characters matched by <code>\s</code>.
+	 */
+	static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Returns the index of the first character at or after <code>from</code> that is not whitespace,
+	 * or the text length if there is none.
+	 */
+	static int skipSpaces(String text, int from) {
+		int i = from;
+		while (i < text.length() && isSpace(text.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Finds a sequence ignoring ASCII case. Sequences are short, so this is linear in the text length.
+	 *
+	 * @param text text to search
+	 * @param sequence sequence to find, in lower case
+	 * @param from index to search from
+	 * @return index of the sequence, or <code>-1</code> if it is not found
+	 */
+	static int indexOfIgnoreCase(String text, String sequence, int from) {
+		char first = sequence.charAt(0);
+		int last = text.length() - sequence.length();
+
+		if (first < 'a' || first > 'z') {
+			//the first character has a single case, skip to its occurrences
+			for (int i = text.indexOf(first, from); i >= 0 && i <= last; i = text.indexOf(first, i + 1)) {
+				if (matches(text, i, sequence)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		for (int i = from; i <= last; i++) {
+			if (equalsIgnoreCase(text.charAt(i), first) && matches(text, i, sequence)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches(String text, int offset, String sequence) {
+		for (int i = 1; i < sequence.length(); i++) {
+			if (!equalsIgnoreCase(text.charAt(offset + i), sequence.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equalsIgnoreCase(char c, char lower) {
+		return c == lower || (c >= 'A' && c <= 'Z' && c + ('a' - 'A') == lower);
+	}
+
+	/**
+	 * Returns <code>true</code> for the bytes of the whitespace characters matched by <code>\s</code>.
+	 */
+	static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	/**
+	 * Returns the index of the first byte from <code>from</code> to <code>to</code> that is not whitespace,
+	 * or <code>to</code> if there is none.
+	 */
+	static int skipSpaces(byte[] bytes, int from, int to) {
+		int i = from;
+		while (i < to && isSpace(bytes[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Finds a byte between <code>from</code> and <code>to</code>.
+	 *
+	 * @return index of the byte, or <code>-1</code> if it is not found
+	 */
+	static int indexOf(byte[] bytes, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds a sequence ignoring ASCII case. The sequence must lie between <code>from</code> and <code>to</code>.
+	 *
+	 * @param bytes UTF-8 text to search
+	 * @param sequence ASCII sequence to find, in lower case
+	 * @param from index to search from
+	 * @param to index the sequence must end by
+	 * @return index of the sequence, or <code>-1</code> if it is not found
+	 */
+	static int indexOfIgnoreCase(ByteBuffer bytes, String sequence, int from, int to) {
+		char first = sequence.charAt(0);
+		int last = to - sequence.length();
+
+		for (int i = from; i <= last; i++) {
+			if (equalsIgnoreCase((char) bytes.get(i), first) && matches(bytes, i, sequence)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches(ByteBuffer bytes, int offset, String sequence) {
+		for (int i = 1; i < sequence.length(); i++) {
+			if (!equalsIgnoreCase((char) bytes.get(offset + i), sequence.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+package com.googlecode.jspcompressor.compressor;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface describing compressors that also work on UTF-8 encoded bytes, so content read from
+ * files or buffered from a response doesn't have to be decoded to characters and encoded again.
+ * The result is the UTF-8 encoding of what {@link Compressor#compress(String)} returns for the
+ * decoded content.
+ */
+public interface Utf8Compressor extends Compressor {
+	/**
+	 * Compresses UTF-8 encoded content. The bytes from the position to the limit of the buffer are
+	 * compressed, the position of the buffer is not changed. Heap, direct and mapped buffers are accepted.
+	 *
+	 * @param content The UTF-8 encoded content to compress.
+	 * @return Compressed content, from position 0 to the limit of the returned buffer.
+	 * @throws Exception
+	 */
+	public abstract ByteBuffer compress(ByteBuffer content) throws Exception;
+}
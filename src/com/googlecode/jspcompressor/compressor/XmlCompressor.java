@@ -14,6 +14,7 @@ package com.googlecode.jspcompressor.compressor;
  * limitations under the License.
  */
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -21,11 +22,12 @@ import java.util.regex.Pattern;
 
 /**
  * Class that compresses given XML source by removing comments, extra spaces and 
- * line breaks while preserving content within CDATA blocks.
+ * line breaks while preserving content within CDATA blocks. UTF-8 encoded XML can be
+ * compressed as bytes with {@link #compress(ByteBuffer)}.
  * 
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
-public class XmlCompressor implements Compressor {
+public class XmlCompressor implements Utf8Compressor {
 	
 	private boolean enabled = true;
 	
@@ -36,11 +38,11 @@ public class XmlCompressor implements Compressor {
 	//temp replacements for preserved blocks 
 	private static final String tempCdataBlock = "%%%COMPRESS~CDATA~#%%%";
 	
-	//compiled regex patterns
-	private static final Pattern cdataPattern = Pattern.compile("<!\\[CDATA\\[.*?\\]\\]>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-	private static final Pattern commentPattern = Pattern.compile("<!--.*?-->", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-	private static final Pattern intertagPattern = Pattern.compile(">\\s+<", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+	//block patterns, equivalent to the regular expressions in the comments
+	private static final BlockPattern cdataPattern = new BlockPattern("<![cdata[", null, false, 0, "]]>");	// <!\[CDATA\[.*?\]\]>
+	private static final BlockPattern commentPattern = new BlockPattern("<!--", null, false, 0, "-->");	// <!--.*?-->
 	
+	//compiled regex patterns
 	private static final Pattern tempCdataPattern = Pattern.compile("%%%COMPRESS~CDATA~(\\d+?)%%%", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
 	
 	/**
@@ -70,19 +72,168 @@ public class XmlCompressor implements Compressor {
 		return xml.trim();
 	}
 
-	private String preserveBlocks(String xml, List<String> cdataBlocks) {
-		//preserve CDATA blocks
-		Matcher matcher = cdataPattern.matcher(xml);
-		int index = 0;
-		StringBuffer sb = new StringBuffer();
-		while(matcher.find()) {
-			cdataBlocks.add(matcher.group(0));
-			matcher.appendReplacement(sb, tempCdataBlock.replaceFirst("#", Integer.toString(index++)));
+	/**
+	 * Compresses UTF-8 encoded XML without decoding it. CDATA sections and comments are found
+	 * in the bytes and copied or skipped, all other bytes, multi-byte sequences included, are copied
+	 * through as they are. The result is the same as compressing the decoded XML with {@link #compress(String)}.
+	 * 
+	 * @param xml UTF-8 encoded XML content to compress, from its position to its limit
+	 * @return compressed content.
+	 */
+	public ByteBuffer compress(ByteBuffer xml) {
+		if(!enabled || xml == null || !xml.hasRemaining()) {
+			return xml == null ? null : xml.slice();
 		}
-		matcher.appendTail(sb);
-		xml = sb.toString();
 		
-		return xml;
+		int from = xml.position();
+		int to = xml.limit();
+		
+		//CDATA sections in the content, start and end index of each
+		int[] cdata = findCdataBlocks(xml, from, to);
+		int cdataCount = cdata[0];
+		
+		//the result is never longer than the content. CDATA sections are copied as they are,
+		//their place in the result is kept so that inter-tag spaces are not looked for in them.
+		byte[] result = new byte[to - from];
+		int[] copied = new int[cdataCount * 2];
+		int length = 0;
+		int copiedCount = 0;
+		
+		boolean comments = removeComments;
+		int pos = from;
+		int block = 0;
+		while(pos < to) {
+			int textEnd = block < cdataCount ? cdata[block * 2 + 1] : to;
+			int open = comments ? TextScanner.indexOfIgnoreCase(xml, "<!--", pos, textEnd) : -1;
+			
+			if(open < 0) {
+				length = copy(xml, pos, textEnd, result, length);
+				if(block < cdataCount) {
+					copied[copiedCount * 2] = length;
+					length = copy(xml, textEnd, cdata[block * 2 + 2], result, length);
+					copied[copiedCount * 2 + 1] = length;
+					copiedCount++;
+					pos = cdata[block * 2 + 2];
+					block++;
+				} else {
+					pos = to;
+				}
+				continue;
+			}
+			
+			//a comment ends at the first "-->" outside CDATA sections, which it removes with it
+			int close = -1;
+			int search = open + 4;
+			int skipped = block;
+			while(true) {
+				int searchEnd = skipped < cdataCount ? cdata[skipped * 2 + 1] : to;
+				close = TextScanner.indexOfIgnoreCase(xml, "-->", search, searchEnd);
+				if(close >= 0 || skipped == cdataCount) {
+					break;
+				}
+				search = cdata[skipped * 2 + 2];
+				skipped++;
+			}
+			
+			length = copy(xml, pos, open, result, length);
+			if(close < 0) {
+				//no later comment is closed either
+				comments = false;
+				pos = open;
+			} else {
+				pos = close + 3;
+				block = skipped;
+			}
+		}
+		
+		if(removeIntertagSpaces) {
+			length = removeIntertagSpaces(result, length, copied, copiedCount);
+		}
+		
+		//trim
+		int start = 0;
+		while(start < length && result[start] >= 0 && result[start] <= ' ') {
+			start++;
+		}
+		while(length > start && result[length - 1] >= 0 && result[length - 1] <= ' ') {
+			length--;
+		}
+		return ByteBuffer.wrap(result, start, length - start).slice();
+	}
+	
+	/*
+	 * Finds CDATA sections like preserving them does, returns their number followed by the 
+	 * start and end index of each.
+	 */
+	private static int[] findCdataBlocks(ByteBuffer xml, int from, int to) {
+		int[] blocks = new int[17];
+		int count = 0;
+		
+		int start = TextScanner.indexOfIgnoreCase(xml, "<![cdata[", from, to);
+		while(start >= 0) {
+			int end = TextScanner.indexOfIgnoreCase(xml, "]]>", start + 9, to);
+			if(end < 0) {
+				break;
+			}
+			
+			if(count * 2 + 3 > blocks.length) {
+				int[] grown = new int[blocks.length * 2];
+				System.arraycopy(blocks, 0, grown, 0, blocks.length);
+				blocks = grown;
+			}
+			blocks[count * 2 + 1] = start;
+			blocks[count * 2 + 2] = end + 3;
+			count++;
+			start = TextScanner.indexOfIgnoreCase(xml, "<![cdata[", end + 3, to);
+		}
+		
+		blocks[0] = count;
+		return blocks;
+	}
+	
+	private static int copy(ByteBuffer source, int from, int to, byte[] target, int offset) {
+		if(from < to) {
+			ByteBuffer range = source.duplicate();
+			range.limit(to);
+			range.position(from);
+			range.get(target, offset, to - from);
+		}
+		return offset + to - from;
+	}
+	
+	/*
+	 * Removes whitespace between tags in place, skipping the copied CDATA sections. Placeholders 
+	 * don't start with '<' or end with '>', so whitespace next to a CDATA section is kept.
+	 */
+	private static int removeIntertagSpaces(byte[] xml, int length, int[] cdata, int cdataCount) {
+		int written = 0;
+		int pos = 0;
+		
+		for(int block = 0; block <= cdataCount; block++) {
+			int textEnd = block < cdataCount ? cdata[block * 2] : length;
+			
+			int last = pos;
+			for(int gt = TextScanner.indexOf(xml, (byte) '>', pos, textEnd); gt >= 0; gt = TextScanner.indexOf(xml, (byte) '>', gt, textEnd)) {
+				int end = TextScanner.skipSpaces(xml, gt + 1, textEnd);
+				if(end > gt + 1 && end < textEnd && xml[end] == '<') {
+					System.arraycopy(xml, last, xml, written, gt + 1 - last);
+					written += gt + 1 - last;
+					last = end;
+				}
+				gt = end;
+			}
+			
+			int textAndBlockEnd = block < cdataCount ? cdata[block * 2 + 1] : length;
+			System.arraycopy(xml, last, xml, written, textAndBlockEnd - last);
+			written += textAndBlockEnd - last;
+			pos = textAndBlockEnd;
+		}
+		return written;
+	}
+
+	private String preserveBlocks(String xml, List<String> cdataBlocks) {
+		//preserve CDATA blocks
+		return cdataPattern.preserve(xml, tempCdataBlock, cdataBlocks);
 	}
 	
 	private String returnBlocks(String xml, List<String> cdataBlocks) {
@@ -101,16 +252,44 @@ public class XmlCompressor implements Compressor {
 	private String processXml(String xml) throws Exception {
 		//remove comments
 		if(removeComments) {
-			xml = commentPattern.matcher(xml).replaceAll("");
+			xml = commentPattern.remove(xml);
 		}
 		
 		//remove inter-tag spaces
 		if(removeIntertagSpaces) {
-			xml = intertagPattern.matcher(xml).replaceAll("><");
+			xml = removeIntertagSpaces(xml);
 		}
 		return xml;
 	}
 	
+	/*
+	 * Removes whitespace between tags, like replacing >\s+< with >< does. Only the text 
+	 * after each '>' is looked at, the text in between is skipped.
+	 */
+	private static String removeIntertagSpaces(String xml) {
+		StringBuilder sb = null;
+		int last = 0;
+		
+		for (int gt = xml.indexOf('>'); gt >= 0; gt = xml.indexOf('>', gt + 1)) {
+			int end = TextScanner.skipSpaces(xml, gt + 1);
+			if (end == gt + 1 || end >= xml.length() || xml.charAt(end) != '<') {
+				continue;
+			}
+			
+			if (sb == null) {
+				sb = new StringBuilder(xml.length());
+			}
+			sb.append(xml, last, gt + 1);
+			last = end;
+			gt = end;
+		}
+		
+		if (sb == null) {
+			return xml;
+		}
+		return sb.append(xml, last, xml.length()).toString();
+	}
+	
 	/**
 	 * Returns <code>true</code> if compression is enabled.  
 	 * 
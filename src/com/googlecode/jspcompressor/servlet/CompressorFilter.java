@@ -0,0 +1,320 @@
+package com.googlecode.jspcompressor.servlet;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.googlecode.jspcompressor.compressor.Bulkhead;
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.compressor.XmlCompressor;
+
+/**
+ * Servlet filter that compresses whole responses, so content pulled in with <code>jsp:include</code>
+ * or tiles is compressed as well without wrapping every page in &lt;compress:jsp>.
+ * HTML responses are compressed with {@link JspCompressor}, XML responses with {@link XmlCompressor}.
+ *
+ * <p>The filter is configured with <code>init-param</code>s named after the
+ * {@link JspCompressor} properties (<code>enabled</code>, <code>removeComments</code>,
+ * <code>removeMultiSpaces</code>, <code>removeIntertagSpaces</code>, <code>removeQuotes</code>,
+ * <code>compressJavaScript</code>, <code>compressCss</code>, <code>removeJspComments</code>,
+ * <code>skipStrutsFormComments</code>, <code>yuiJsNoMunge</code>, <code>yuiJsPreserveAllSemiColons</code>,
+ * <code>yuiJsDisableOptimizations</code>, <code>yuiJsLineBreak</code>, <code>yuiCssLineBreak</code>)
+ * and <code>xmlRemoveComments</code>, <code>xmlRemoveIntertagSpaces</code> for XML content.
+ * In addition:
+ * <ul>
+ * <li><code>excludedPaths</code> - comma separated list of path prefixes, relative to the context path,
+ * that are passed through untouched</li>
+ * <li><code>htmlContentTypes</code> - comma separated list of content types compressed as HTML,
+ * default is <code>text/html,application/xhtml+xml</code></li>
+ * <li><code>xmlContentTypes</code> - comma separated list of content types compressed as XML,
+ * default is <code>text/xml,application/xml,application/rss+xml,application/atom+xml</code></li>
+ * <li><code>maxBufferSize</code> - responses larger than this number of characters are sent
+ * uncompressed as they are written, default is <code>1048576</code></li>
+ * <li><code>gzip</code> - if <code>true</code> compressed content is also GZIP encoded for clients
+ * that accept it, default is <code>false</code>. Leave this off if the container already encodes responses.</li>
+ * <li><code>gzipLevel</code> - deflate level between 1 and 9, default is <code>6</code></li>
+ * <li><code>gzipMinSize</code> - responses shorter than this number of characters are not GZIP encoded,
+ * default is <code>512</code></li>
+ * <li><code>etag</code> - if <code>true</code> a strong <code>ETag</code> computed from the compressed content
+ * is sent with successful responses and <code>If-None-Match</code> requests that match it are answered with
+ * <code>304 Not Modified</code>, default is <code>false</code></li>
+ * <li><code>timeBudget</code> - milliseconds from the time a request enters the filter after which
+ * &lt;script> and &lt;style> blocks of its HTML response are no longer compressed with YUI Compressor,
+ * see {@link JspCompressor#compress(String, long)}. Default is <code>-1</code> for no budget.</li>
+ * <li><code>yuiMaxConcurrent</code> - maximum number of threads running YUI Compressor at the same time
+ * for responses of this filter, see {@link Bulkhead}. If not set, the JVM wide limit applies.</li>
+ * </ul>
+ *
+ * <p>The compressors are configured once when the filter is initialized and shared by all requests.
+ * Responses marked as attachments through <code>Content-Disposition</code> are streamed through untouched.
+ *
+ * @see JspCompressor
+ * @see XmlCompressor
+ */
+public class CompressorFilter implements Filter {
+
+	private ServletContext servletContext;
+
+	private boolean enabled = true;
+	private int maxBufferSize = 1024 * 1024;
+
+	private boolean gzipEnabled = false;
+	private int gzipMinSize = 512;
+	private DeflaterPool deflaterPool;
+
+	private boolean etagEnabled = false;
+	private int timeBudget = -1;
+
+	private List<String> excludedPaths = new ArrayList<String>();
+	private List<String> htmlContentTypes = new ArrayList<String>();
+	private List<String> xmlContentTypes = new ArrayList<String>();
+
+	private JspCompressor jspCompressor;
+	private XmlCompressor xmlCompressor;
+
+	public void init(FilterConfig config) throws ServletException {
+		servletContext = config.getServletContext();
+
+		enabled = getBoolean(config, "enabled", true);
+		maxBufferSize = getInt(config, "maxBufferSize", maxBufferSize);
+
+		etagEnabled = getBoolean(config, "etag", false);
+		timeBudget = getInt(config, "timeBudget", -1);
+
+		gzipEnabled = getBoolean(config, "gzip", false);
+		gzipMinSize = getInt(config, "gzipMinSize", gzipMinSize);
+		if (gzipEnabled) {
+			deflaterPool = new DeflaterPool(getInt(config, "gzipLevel", 6), Runtime.getRuntime().availableProcessors() * 4);
+		}
+
+		excludedPaths = getList(config, "excludedPaths", "", false);
+		htmlContentTypes = getList(config, "htmlContentTypes", "text/html,application/xhtml+xml", true);
+		xmlContentTypes = getList(config, "xmlContentTypes", "text/xml,application/xml,application/rss+xml,application/atom+xml", true);
+
+		jspCompressor = new JspCompressor();
+		jspCompressor.setRemoveComments(getBoolean(config, "removeComments", true));
+		jspCompressor.setRemoveMultiSpaces(getBoolean(config, "removeMultiSpaces", true));
+		jspCompressor.setRemoveIntertagSpaces(getBoolean(config, "removeIntertagSpaces", false));
+		jspCompressor.setRemoveQuotes(getBoolean(config, "removeQuotes", false));
+		jspCompressor.setCompressJavaScript(getBoolean(config, "compressJavaScript", false));
+		jspCompressor.setCompressCss(getBoolean(config, "compressCss", false));
+		jspCompressor.setYuiJsNoMunge(getBoolean(config, "yuiJsNoMunge", false));
+		jspCompressor.setYuiJsPreserveAllSemiColons(getBoolean(config, "yuiJsPreserveAllSemiColons", false));
+		jspCompressor.setYuiJsDisableOptimizations(getBoolean(config, "yuiJsDisableOptimizations", false));
+		jspCompressor.setYuiJsLineBreak(getInt(config, "yuiJsLineBreak", -1));
+		jspCompressor.setYuiCssLineBreak(getInt(config, "yuiCssLineBreak", -1));
+		jspCompressor.setSkipStrutsFormComments(getBoolean(config, "skipStrutsFormComments", false));
+		jspCompressor.setRemoveJspComments(getBoolean(config, "removeJspComments", true));
+
+		int yuiMaxConcurrent = getInt(config, "yuiMaxConcurrent", -1);
+		if (yuiMaxConcurrent > 0) {
+			jspCompressor.setYuiBulkhead(new Bulkhead(yuiMaxConcurrent));
+		}
+
+		xmlCompressor = new XmlCompressor();
+		xmlCompressor.setRemoveComments(getBoolean(config, "xmlRemoveComments", true));
+		xmlCompressor.setRemoveIntertagSpaces(getBoolean(config, "xmlRemoveIntertagSpaces", true));
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		if (!enabled || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)
+				|| isExcluded((HttpServletRequest) request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		boolean gzip = gzipEnabled && acceptsGzip((HttpServletRequest) request);
+		CompressorResponseWrapper wrapper = new CompressorResponseWrapper((HttpServletResponse) response, this, maxBufferSize, gzip);
+
+		if (etagEnabled) {
+			String method = ((HttpServletRequest) request).getMethod();
+			if ("GET".equals(method) || "HEAD".equals(method)) {
+				wrapper.setIfNoneMatch(((HttpServletRequest) request).getHeader("If-None-Match"));
+			}
+		}
+
+		boolean completed = false;
+		try {
+			chain.doFilter(request, wrapper);
+			completed = true;
+		} finally {
+			if (completed) {
+				wrapper.finish();
+			} else {
+				wrapper.abort();
+			}
+		}
+	}
+
+	public void destroy() {
+		if (deflaterPool != null) {
+			deflaterPool.clear();
+			deflaterPool = null;
+		}
+		jspCompressor = null;
+		xmlCompressor = null;
+	}
+
+	/**
+	 * Returns the compressor configured for the given content type, or <code>null</code>
+	 * if responses of this type should not be compressed.
+	 *
+	 * @param contentType response content type, possibly with parameters such as <code>charset</code>
+	 * @return compressor to use or <code>null</code>
+	 */
+	Compressor getCompressor(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+
+		int idx = contentType.indexOf(';');
+		String mimeType = (idx >= 0 ? contentType.substring(0, idx) : contentType).trim().toLowerCase();
+
+		if (htmlContentTypes.contains(mimeType)) {
+			return jspCompressor;
+		} else if (xmlContentTypes.contains(mimeType)) {
+			return xmlCompressor;
+		}
+		return null;
+	}
+
+	int getTimeBudget() {
+		return timeBudget;
+	}
+
+	boolean isETagEnabled() {
+		return etagEnabled;
+	}
+
+	boolean isGzipEnabled() {
+		return gzipEnabled;
+	}
+
+	int getGzipMinSize() {
+		return gzipMinSize;
+	}
+
+	DeflaterPool getDeflaterPool() {
+		return deflaterPool;
+	}
+
+	void log(String msg, Throwable t) {
+		servletContext.log(msg, t);
+	}
+
+	/**
+	 * Returns <code>true</code> if the <code>Accept-Encoding</code> request header
+	 * allows <code>gzip</code> with a non-zero quality value. A wildcard only counts
+	 * if <code>gzip</code> is not listed explicitly.
+	 */
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		double gzipQuality = -1;
+		double wildcardQuality = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+				continue;
+			}
+
+			double quality = 1.0;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+
+			if (name.equals("*")) {
+				wildcardQuality = Math.max(wildcardQuality, quality);
+			} else {
+				gzipQuality = Math.max(gzipQuality, quality);
+			}
+		}
+		return gzipQuality >= 0 ? gzipQuality > 0 : wildcardQuality > 0;
+	}
+
+	private boolean isExcluded(HttpServletRequest request) {
+		if (excludedPaths.isEmpty()) {
+			return false;
+		}
+
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		for (String excluded : excludedPaths) {
+			if (path.startsWith(excluded)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean getBoolean(FilterConfig config, String name, boolean defaultValue) {
+		String value = config.getInitParameter(name);
+		return value == null ? defaultValue : Boolean.valueOf(value.trim()).booleanValue();
+	}
+
+	private static int getInt(FilterConfig config, String name, int defaultValue) throws ServletException {
+		String value = config.getInitParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value for init-param " + name + ": " + value);
+		}
+	}
+
+	private static List<String> getList(FilterConfig config, String name, String defaultValue, boolean lowerCase) {
+		String value = config.getInitParameter(name);
+		if (value == null) {
+			value = defaultValue;
+		}
+
+		List<String> list = new ArrayList<String>();
+		for (String item : value.split(",")) {
+			item = item.trim();
+			if (item.length() > 0) {
+				list.add(lowerCase ? item.toLowerCase() : item);
+			}
+		}
+		return list;
+	}
+}
@@ -0,0 +1,741 @@
+package com.googlecode.jspcompressor.servlet;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.compressor.Utf8Compressor;
+
+/**
+ * Response wrapper used by {@link CompressorFilter}. Output written through either the writer
+ * or the output stream is buffered and compressed when the request completes. If the client accepts it
+ * and the filter enables it, the compressed content is GZIP encoded on the way out. With entity tags
+ * enabled, a strong <code>ETag</code> is computed from the compressed content and conditional requests
+ * that already hold it are answered with <code>304 Not Modified</code> without sending the body.
+ * UTF-8 content written through the output stream is compressed as bytes, without decoding it.
+ * Content already encoded in the response charset, such as cached tag output, can be added to the
+ * writer output through {@link #getEncodedOutputStream()}.
+ *
+ * <p>The wrapper switches to pass-through mode, writing everything already buffered and all
+ * further output directly to the wrapped response, when the content type is not compressible,
+ * when the response is marked as an attachment or when the buffer grows beyond the configured limit.
+ * Content buffered before an error is sent is dropped, and the error page is passed through as well.
+ */
+public class CompressorResponseWrapper extends HttpServletResponseWrapper {
+
+	private static final int GZIP_BUFFER_SIZE = 8192;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final CompressorFilter filter;
+	private final int maxBufferSize;
+	private final boolean gzip;
+	private final long startTime = System.nanoTime();
+
+	private CapturingWriter capturingWriter;
+	private PrintWriter writer;
+	private CapturingOutputStream stream;
+
+	private boolean bypass = false;
+	private boolean errorSent = false;
+	private int contentLength = -1;
+	private int status = SC_OK;
+	private String ifNoneMatch;
+
+	/**
+	 * @param response response to wrap
+	 * @param filter filter that supplies compressors and settings
+	 * @param maxBufferSize number of characters or bytes after which output is passed through uncompressed
+	 * @param gzip <code>true</code> if the client accepts GZIP encoded content
+	 */
+	public CompressorResponseWrapper(HttpServletResponse response, CompressorFilter filter, int maxBufferSize, boolean gzip) {
+		super(response);
+		this.filter = filter;
+		this.maxBufferSize = maxBufferSize;
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Sets the value of the request's <code>If-None-Match</code> header. If the entity tag of
+	 * the compressed content matches it, <code>304 Not Modified</code> is sent instead of the content.
+	 *
+	 * @param ifNoneMatch header value, or <code>null</code> for unconditional requests
+	 */
+	public void setIfNoneMatch(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	public void setStatus(int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	public void setStatus(int sc, String sm) {
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	public void sendError(int sc) throws IOException {
+		discard();
+		status = sc;
+		super.sendError(sc);
+	}
+
+	public void sendError(int sc, String msg) throws IOException {
+		discard();
+		status = sc;
+		super.sendError(sc, msg);
+	}
+
+	public PrintWriter getWriter() throws IOException {
+		if (stream != null) {
+			throw new IllegalStateException("getOutputStream() has already been called for this response");
+		}
+
+		if (writer == null) {
+			capturingWriter = new CapturingWriter();
+			writer = new PrintWriter(capturingWriter);
+		}
+		return writer;
+	}
+
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called for this response");
+		}
+
+		if (stream == null) {
+			stream = new CapturingOutputStream();
+		}
+		return stream;
+	}
+
+	public void setContentLength(int len) {
+		if (bypass) {
+			super.setContentLength(len);
+		} else {
+			contentLength = len;
+		}
+	}
+
+	public void setHeader(String name, String value) {
+		if (checkHeader(name, value)) {
+			super.setHeader(name, value);
+		}
+	}
+
+	public void addHeader(String name, String value) {
+		if (checkHeader(name, value)) {
+			super.addHeader(name, value);
+		}
+	}
+
+	public void setIntHeader(String name, int value) {
+		if (checkHeader(name, Integer.toString(value))) {
+			super.setIntHeader(name, value);
+		}
+	}
+
+	public void addIntHeader(String name, int value) {
+		if (checkHeader(name, Integer.toString(value))) {
+			super.addIntHeader(name, value);
+		}
+	}
+
+	public void flushBuffer() throws IOException {
+		if (bypass) {
+			flushOutput();
+			super.flushBuffer();
+		}
+	}
+
+	public void reset() {
+		super.reset();
+		clearBuffers();
+		contentLength = -1;
+		status = SC_OK;
+
+		//headers that caused pass-through mode are gone, and nothing has been written past the buffer,
+		//but an error page is still passed through
+		bypass = errorSent;
+	}
+
+	public void resetBuffer() {
+		super.resetBuffer();
+		clearBuffers();
+	}
+
+	/**
+	 * Returns a stream for content already encoded in the response charset, which is buffered in order
+	 * with the output of {@link #getWriter()}. Anything written to the writer before must have been flushed.
+	 * The stream is only available while UTF-8 content is buffered for a compressor that works on bytes,
+	 * as the buffered output is then compressed and sent without decoding it.
+	 *
+	 * @return stream for encoded content, or <code>null</code> if content must be written as characters
+	 */
+	public OutputStream getEncodedOutputStream() {
+		if (bypass || stream != null || !(filter.getCompressor(getContentType()) instanceof Utf8Compressor) || !isUtf8()) {
+			return null;
+		}
+
+		if (writer == null) {
+			capturingWriter = new CapturingWriter();
+			writer = new PrintWriter(capturingWriter);
+		}
+		return capturingWriter.encodedStream;
+	}
+
+	/**
+	 * Compresses the buffered content and writes it to the wrapped response.
+	 * Called by the filter once the rest of the chain has completed.
+	 *
+	 * @throws IOException if writing to the wrapped response fails
+	 */
+	public void finish() throws IOException {
+		if (errorSent) {
+			return;
+		}
+
+		if (bypass) {
+			flushOutput();
+			return;
+		}
+
+		String content = null;
+		if (writer != null && capturingWriter.encoded != null) {
+			writer.flush();
+			capturingWriter.drain();
+			Compressor compressor = filter.getCompressor(getContentType());
+			if (compressor instanceof Utf8Compressor && isUtf8()) {
+				finish(compress((Utf8Compressor) compressor, capturingWriter.encoded.toByteBuffer()));
+				return;
+			}
+			content = capturingWriter.encoded.toString(getCharacterEncoding());
+		} else if (writer != null) {
+			writer.flush();
+			content = capturingWriter.buffer.toString();
+		} else if (stream != null && stream.buffer.size() > 0) {
+			Compressor compressor = filter.getCompressor(getContentType());
+			if (compressor instanceof Utf8Compressor && isUtf8()) {
+				finish(compress((Utf8Compressor) compressor, stream.buffer.toByteBuffer()));
+				return;
+			}
+			content = stream.buffer.toString(getCharacterEncoding());
+		}
+
+		if (content == null) {
+			if (contentLength >= 0) {
+				super.setContentLength(contentLength);
+			}
+			return;
+		}
+
+		String result = compress(content);
+		boolean encode = gzip && result.length() >= filter.getGzipMinSize();
+
+		if (filter.isGzipEnabled()) {
+			super.addHeader("Vary", "Accept-Encoding");
+		}
+
+		if (filter.isETagEnabled() && status == SC_OK) {
+			String etag = computeETag(result, encode);
+			super.setHeader("ETag", etag);
+
+			if (matches(ifNoneMatch, etag)) {
+				super.setStatus(SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		if (encode) {
+			super.setHeader("Content-Encoding", "gzip");
+			writeGzip(result);
+		} else if (writer != null) {
+			getResponse().getWriter().write(result);
+		} else {
+			byte[] bytes = result.getBytes(getCharacterEncoding());
+			super.setContentLength(bytes.length);
+			getResponse().getOutputStream().write(bytes);
+		}
+	}
+
+	/**
+	 * Writes the buffered content to the wrapped response uncompressed. Called by the filter instead of
+	 * {@link #finish()} if the rest of the chain has failed, so output written so far is not lost. The
+	 * response is not flushed, so the container can still replace an uncommitted response with an error page
+	 * as it would without the filter. Errors are logged rather than thrown, leaving the original failure to propagate.
+	 */
+	public void abort() {
+		try {
+			if (writer != null) {
+				writer.flush();
+			}
+			startBypass();
+		} catch (IOException e) {
+			filter.log("Failed to write response content after an error", e);
+		} catch (IllegalStateException e) {
+			filter.log("Failed to write response content after an error", e);
+		}
+	}
+
+	/**
+	 * Writes content compressed as bytes to the wrapped response, like {@link #finish()}
+	 * writes compressed characters. The wrapped output stream is used even for writer output,
+	 * whose charset has been set explicitly.
+	 */
+	private void finish(ByteBuffer result) throws IOException {
+		byte[] bytes = result.array();
+		int offset = result.arrayOffset() + result.position();
+		int length = result.remaining();
+		boolean encode = gzip && length >= filter.getGzipMinSize();
+
+		if (filter.isGzipEnabled()) {
+			super.addHeader("Vary", "Accept-Encoding");
+		}
+
+		if (filter.isETagEnabled() && status == SC_OK) {
+			String etag = computeETag(bytes, offset, length, encode);
+			super.setHeader("ETag", etag);
+
+			if (matches(ifNoneMatch, etag)) {
+				super.setStatus(SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		if (encode) {
+			super.setHeader("Content-Encoding", "gzip");
+			PooledGzipOutputStream gzipStream = new PooledGzipOutputStream(getResponse().getOutputStream(), filter.getDeflaterPool(), GZIP_BUFFER_SIZE);
+			try {
+				gzipStream.write(bytes, offset, length);
+			} finally {
+				gzipStream.finish();
+			}
+		} else {
+			super.setContentLength(length);
+			getResponse().getOutputStream().write(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Encodes the compressed content straight into a pooled deflater, which writes
+	 * deflate blocks to the wrapped output stream as they fill.
+	 */
+	private void writeGzip(String result) throws IOException {
+		PooledGzipOutputStream gzipStream = new PooledGzipOutputStream(getResponse().getOutputStream(), filter.getDeflaterPool(), GZIP_BUFFER_SIZE);
+		try {
+			Writer encoder = new OutputStreamWriter(gzipStream, getCharacterEncoding());
+			encoder.write(result);
+			encoder.flush();
+		} finally {
+			gzipStream.finish();
+		}
+	}
+
+	/**
+	 * Computes a strong entity tag from the compressed content, its charset and content coding.
+	 * The digest is taken over the content encoded in the response charset, the same bytes that
+	 * {@link #computeETag(byte[], int, int, boolean)} digests for content compressed as bytes, so
+	 * a page gets the same entity tag whichever way it was buffered. The content is encoded into the
+	 * digest as it goes and never as a whole.
+	 */
+	private String computeETag(String result, boolean encoded) throws IOException {
+		MessageDigest digest = newDigest();
+
+		Writer encoder = new OutputStreamWriter(new DigestingOutputStream(digest), getCharacterEncoding());
+		encoder.write(result);
+		encoder.flush();
+		return toETag(digest, encoded);
+	}
+
+	/**
+	 * Computes a strong entity tag from content compressed as bytes, its charset and content coding.
+	 */
+	private String computeETag(byte[] bytes, int offset, int length, boolean encoded) throws IOException {
+		MessageDigest digest = newDigest();
+		digest.update(bytes, offset, length);
+		return toETag(digest, encoded);
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			IOException ioe = new IOException("MD5 digest is not available");
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	private String toETag(MessageDigest digest, boolean encoded) throws IOException {
+		digest.update(String.valueOf(getCharacterEncoding()).getBytes("UTF-8"));
+
+		StringBuilder etag = new StringBuilder(40).append('"');
+		for (byte b : digest.digest()) {
+			etag.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		if (encoded) {
+			etag.append("-gzip");
+		}
+		return etag.append('"').toString();
+	}
+
+	/**
+	 * Returns <code>true</code> if the <code>If-None-Match</code> header value lists the entity tag,
+	 * using the weak comparison function conditional GET requires.
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String compress(String content) {
+		Compressor compressor = filter.getCompressor(getContentType());
+		if (compressor == null) {
+			return content;
+		}
+
+		try {
+			int timeBudget = filter.getTimeBudget();
+			if (timeBudget >= 0 && compressor instanceof JspCompressor) {
+				//whatever the rest of the request left of the budget
+				long elapsed = (System.nanoTime() - startTime) / 1000000L;
+				return ((JspCompressor) compressor).compress(content, Math.max(0, timeBudget - elapsed));
+			}
+			return compressor.compress(content);
+		} catch (Exception e) {
+			filter.log("Failed to compress response content, sending it uncompressed", e);
+			return content;
+		}
+	}
+
+	private ByteBuffer compress(Utf8Compressor compressor, ByteBuffer content) {
+		try {
+			int timeBudget = filter.getTimeBudget();
+			if (timeBudget >= 0 && compressor instanceof JspCompressor) {
+				//whatever the rest of the request left of the budget
+				long elapsed = (System.nanoTime() - startTime) / 1000000L;
+				return ((JspCompressor) compressor).compress(content, Math.max(0, timeBudget - elapsed));
+			}
+			return compressor.compress(content);
+		} catch (Exception e) {
+			filter.log("Failed to compress response content, sending it uncompressed", e);
+			return content;
+		}
+	}
+
+	private boolean isUtf8() {
+		try {
+			return Charset.forName(getCharacterEncoding()).name().equals("UTF-8");
+		} catch (IllegalArgumentException e) {
+			//no or an unknown charset
+			return false;
+		}
+	}
+
+	/**
+	 * Returns <code>false</code> if the header should be held back from the wrapped response.
+	 */
+	private boolean checkHeader(String name, String value) {
+		if (bypass) {
+			return true;
+		}
+
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			try {
+				contentLength = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				contentLength = -1;
+			}
+			return false;
+		}
+
+		// attachments are streamed, content that is already encoded cannot be compressed
+		if (("Content-Disposition".equalsIgnoreCase(name) && value != null
+				&& value.trim().toLowerCase().startsWith("attachment"))
+				|| "Content-Encoding".equalsIgnoreCase(name)) {
+			try {
+				startBypass();
+			} catch (IOException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decides on the first write whether the content should be buffered at all.
+	 */
+	private void checkCompressible() throws IOException {
+		if (!bypass && filter.getCompressor(getContentType()) == null) {
+			startBypass();
+		}
+	}
+
+	private void startBypass() throws IOException {
+		if (bypass) {
+			return;
+		}
+		bypass = true;
+
+		if (contentLength >= 0) {
+			super.setContentLength(contentLength);
+		}
+
+		if (capturingWriter != null && capturingWriter.encoded != null) {
+			//encoded content is added in whole fragments, which decode on their own
+			getResponse().getWriter().write(capturingWriter.encoded.toString(getCharacterEncoding()));
+			capturingWriter.encoded.reset();
+		}
+		if (capturingWriter != null && capturingWriter.buffer.size() > 0) {
+			capturingWriter.buffer.writeTo(getResponse().getWriter());
+			capturingWriter.buffer.reset();
+		}
+		if (stream != null && stream.buffer.size() > 0) {
+			stream.buffer.writeTo(getResponse().getOutputStream());
+			stream.buffer.reset();
+		}
+	}
+
+	/**
+	 * Drops the buffered content and passes all further output through, as the container replaces
+	 * the response with an error page, possibly only after the filter has returned.
+	 */
+	private void discard() {
+		clearBuffers();
+		contentLength = -1;
+		bypass = true;
+		errorSent = true;
+	}
+
+	private void flushOutput() throws IOException {
+		if (writer != null) {
+			writer.flush();
+			getResponse().getWriter().flush();
+		} else if (stream != null) {
+			getResponse().getOutputStream().flush();
+		}
+	}
+
+	private void clearBuffers() {
+		if (capturingWriter != null) {
+			capturingWriter.buffer.reset();
+			if (capturingWriter.encoded != null) {
+				capturingWriter.encoded.reset();
+			}
+		}
+		if (stream != null) {
+			stream.buffer.reset();
+		}
+	}
+
+	private class CapturingWriter extends Writer {
+		final CharArrayWriter buffer = new CharArrayWriter(8192);
+		final EncodedOutputStream encodedStream = new EncodedOutputStream(this);
+
+		//characters encoded and encoded content added since the first encoded write, in order
+		ContentBuffer encoded;
+		private Writer encoder;
+
+		/**
+		 * Encodes the buffered characters behind the encoded content.
+		 */
+		void drain() throws IOException {
+			if (buffer.size() > 0) {
+				if (encoder == null) {
+					encoder = new OutputStreamWriter(encoded, getCharacterEncoding());
+				}
+				buffer.writeTo(encoder);
+				encoder.flush();
+				buffer.reset();
+			}
+		}
+
+		int size() {
+			return buffer.size() + (encoded != null ? encoded.size() : 0);
+		}
+
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if (!bypass) {
+				if (size() == 0) {
+					checkCompressible();
+				}
+				if (!bypass && size() + len > maxBufferSize) {
+					startBypass();
+				}
+			}
+
+			if (bypass) {
+				getResponse().getWriter().write(cbuf, off, len);
+			} else {
+				buffer.write(cbuf, off, len);
+			}
+		}
+
+		public void write(String str, int off, int len) throws IOException {
+			if (!bypass) {
+				if (size() == 0) {
+					checkCompressible();
+				}
+				if (!bypass && size() + len > maxBufferSize) {
+					startBypass();
+				}
+			}
+
+			if (bypass) {
+				getResponse().getWriter().write(str, off, len);
+			} else {
+				buffer.write(str, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+		}
+
+		public void close() throws IOException {
+		}
+	}
+
+	/**
+	 * Adds encoded content to the writer output. The buffer limit is checked by the next write
+	 * to the writer, so a fragment is never split between the buffer and the wrapped response.
+	 */
+	private class EncodedOutputStream extends OutputStream {
+		private final CapturingWriter target;
+
+		EncodedOutputStream(CapturingWriter target) {
+			this.target = target;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (bypass) {
+				throw new IOException("Response is no longer buffered");
+			}
+
+			if (target.encoded == null) {
+				target.encoded = new ContentBuffer();
+			}
+			target.drain();
+			target.encoded.write(b, off, len);
+		}
+	}
+
+	private class CapturingOutputStream extends ServletOutputStream {
+		final ContentBuffer buffer = new ContentBuffer();
+
+		public void write(int b) throws IOException {
+			if (!bypass) {
+				if (buffer.size() == 0) {
+					checkCompressible();
+				}
+				if (!bypass && buffer.size() + 1 > maxBufferSize) {
+					startBypass();
+				}
+			}
+
+			if (bypass) {
+				getResponse().getOutputStream().write(b);
+			} else {
+				buffer.write(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!bypass) {
+				if (buffer.size() == 0) {
+					checkCompressible();
+				}
+				if (!bypass && buffer.size() + len > maxBufferSize) {
+					startBypass();
+				}
+			}
+
+			if (bypass) {
+				getResponse().getOutputStream().write(b, off, len);
+			} else {
+				buffer.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			if (bypass) {
+				getResponse().getOutputStream().flush();
+			}
+		}
+
+		public void close() throws IOException {
+		}
+	}
+
+	private static class DigestingOutputStream extends OutputStream {
+		private final MessageDigest digest;
+
+		DigestingOutputStream(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		public void write(int b) {
+			digest.update((byte) b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			digest.update(b, off, len);
+		}
+	}
+
+	private static class ContentBuffer extends ByteArrayOutputStream {
+		ContentBuffer() {
+			super(8192);
+		}
+
+		/**
+		 * Returns the buffered bytes without copying them.
+		 */
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.googlecode.jspcompressor.servlet;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of raw (<code>nowrap</code>) {@link Deflater} instances. Deflaters hold native
+ * memory that is only released on <code>end()</code>, so reusing them avoids allocating and
+ * finalizing one per response.
+ */
+public class DeflaterPool {
+
+	private final int level;
+	private final int maxSize;
+
+	private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param level compression level, see {@link Deflater#setLevel(int)}
+	 * @param maxSize maximum number of idle deflaters kept for reuse
+	 */
+	public DeflaterPool(int level, int maxSize) {
+		this.level = level;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns an idle deflater or a new one if the pool is empty.
+	 */
+	public Deflater acquire() {
+		Deflater deflater = pool.poll();
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+		size.decrementAndGet();
+		return deflater;
+	}
+
+	/**
+	 * Resets the deflater and returns it to the pool, or ends it if the pool is full.
+	 */
+	public void release(Deflater deflater) {
+		if (size.incrementAndGet() <= maxSize) {
+			deflater.reset();
+			pool.offer(deflater);
+		} else {
+			size.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Ends all idle deflaters.
+	 */
+	public void clear() {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) {
+			size.decrementAndGet();
+			deflater.end();
+		}
+	}
+}
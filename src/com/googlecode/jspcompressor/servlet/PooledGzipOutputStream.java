@@ -0,0 +1,78 @@
+package com.googlecode.jspcompressor.servlet;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * GZIP output stream that borrows its deflater from a {@link DeflaterPool}. Deflate blocks are
+ * written to the underlying stream as soon as they fill. Unlike <code>GZIPOutputStream</code>,
+ * {@link #finish()} writes the trailer and returns the deflater to the pool without
+ * closing the underlying stream.
+ */
+public class PooledGzipOutputStream extends DeflaterOutputStream {
+
+	private static final byte[] HEADER = {
+		(byte) 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final DeflaterPool pool;
+	private final CRC32 crc = new CRC32();
+	private boolean finished = false;
+
+	public PooledGzipOutputStream(OutputStream out, DeflaterPool pool, int bufferSize) throws IOException {
+		super(out, pool.acquire(), bufferSize);
+		this.pool = pool;
+		out.write(HEADER);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		crc.update(b, off, len);
+	}
+
+	/**
+	 * Writes the remaining compressed data and the GZIP trailer, then returns the deflater to the pool.
+	 * The underlying stream is left open.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		try {
+			super.finish();
+			writeInt((int) crc.getValue());
+			writeInt((int) def.getBytesRead());
+		} finally {
+			pool.release(def);
+		}
+	}
+
+	public void close() throws IOException {
+		finish();
+	}
+
+	private void writeInt(int i) throws IOException {
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+}
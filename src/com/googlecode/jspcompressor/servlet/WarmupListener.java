@@ -0,0 +1,133 @@
+package com.googlecode.jspcompressor.servlet;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.googlecode.jspcompressor.compressor.CompressorWarmup;
+
+/**
+ * Servlet context listener that warms up the compressors on a background thread when the application starts,
+ * so the first requests after a deploy do not pay for loading YUI Compressor and Rhino classes.
+ *
+ * <p>The {@link CompressorWarmup} is stored in the application scoped {@link #WARMUP_ATTRIBUTE} attribute
+ * as soon as it starts, so a readiness check can test
+ * <code>${applicationScope['com.googlecode.jspcompressor.warmup'].finished}</code>.
+ * Completion is also written to the servlet context log.
+ *
+ * <p>Configured with context parameters:
+ * <ul>
+ * <li><code>com.googlecode.jspcompressor.warmup.iterations</code> - number of times each sample page
+ * is compressed, default is <code>20</code></li>
+ * <li><code>com.googlecode.jspcompressor.warmup.pages</code> - comma separated list of context relative
+ * paths of pages to compress, such as <code>/WEB-INF/warmup/home.html</code>. A built-in sample page
+ * is used if none are given.</li>
+ * </ul>
+ */
+public class WarmupListener implements ServletContextListener {
+
+	/**
+	 * Name of the application scoped attribute holding the {@link CompressorWarmup}.
+	 */
+	public static final String WARMUP_ATTRIBUTE = "com.googlecode.jspcompressor.warmup";
+
+	private Thread thread;
+
+	public void contextInitialized(ServletContextEvent event) {
+		final ServletContext servletContext = event.getServletContext();
+
+		int iterations = 20;
+		String value = servletContext.getInitParameter(WARMUP_ATTRIBUTE + ".iterations");
+		if (value != null) {
+			try {
+				iterations = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				servletContext.log("Invalid value for " + WARMUP_ATTRIBUTE + ".iterations: " + value);
+			}
+		}
+
+		final CompressorWarmup warmup = new CompressorWarmup(iterations);
+
+		String pages = servletContext.getInitParameter(WARMUP_ATTRIBUTE + ".pages");
+		if (pages != null) {
+			for (String path : pages.split(",")) {
+				path = path.trim();
+				if (path.length() == 0) {
+					continue;
+				}
+
+				try {
+					String page = readResource(servletContext, path);
+					if (page != null) {
+						warmup.addPage(page);
+					} else {
+						servletContext.log("Warm-up page not found: " + path);
+					}
+				} catch (IOException e) {
+					servletContext.log("Failed to read warm-up page " + path, e);
+				}
+			}
+		}
+
+		servletContext.setAttribute(WARMUP_ATTRIBUTE, warmup);
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				warmup.run();
+				servletContext.log("Compressor warm-up finished in " + warmup.getElapsedTime() + " ms"
+						+ (warmup.getFailed() > 0 ? ", " + warmup.getFailed() + " compressions failed" : ""));
+			}
+		}, "jspcompressor-warmup");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		event.getServletContext().removeAttribute(WARMUP_ATTRIBUTE);
+	}
+
+	private static String readResource(ServletContext servletContext, String path) throws IOException {
+		InputStream in = servletContext.getResourceAsStream(path);
+		if (in == null) {
+			return null;
+		}
+
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		try {
+			StringWriter page = new StringWriter();
+			char[] buffer = new char[4096];
+			int len;
+			while ((len = reader.read(buffer)) != -1) {
+				page.write(buffer, 0, len);
+			}
+			return page.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package com.googlecode.jspcompressor.taglib;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import javax.servlet.ServletContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.PageContext;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.BodyTagSupport;
+
+import com.googlecode.jspcompressor.cache.ContentCache;
+import com.googlecode.jspcompressor.cache.EncodedContentCache;
+import com.googlecode.jspcompressor.cache.LruContentCache;
+import com.googlecode.jspcompressor.cache.MappedContentCache;
+import com.googlecode.jspcompressor.cache.OffHeapContentCache;
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
+import com.googlecode.jspcompressor.servlet.CompressorResponseWrapper;
+
+/**
+ * Base class for the compressor tags. Buffers the tag body and compresses it into the enclosing writer.
+ *
+ * <p>If a <code>cacheKey</code> is given, compressed output is kept in an application scoped cache
+ * and replayed on later requests without evaluating or compressing the body again. Output of bodies
+ * declared <code>static</code> never expires; they need a <code>cacheKey</code> as well, since a tag
+ * has no identity of its own that stays the same across conditional, repeated or included content. The cache is created on first use and bounded by
+ * the <code>com.googlecode.jspcompressor.cache.maxEntries</code> (default <code>1000</code>) and
+ * <code>com.googlecode.jspcompressor.cache.maxChars</code> (default <code>16777216</code>)
+ * context parameters. If <code>com.googlecode.jspcompressor.cache.offHeapBytes</code> is set, the
+ * cache is an {@link OffHeapContentCache} holding up to that many bytes outside of the heap instead.
+ * If <code>com.googlecode.jspcompressor.cache.file</code> is set, the cache is a {@link MappedContentCache}
+ * in that file, shared with all JVMs on the host that use the same file, holding up to
+ * <code>offHeapBytes</code> (default <code>67108864</code>) bytes. As that file outlives deployments, entries
+ * are scoped by the <code>com.googlecode.jspcompressor.cache.generation</code> context parameter, which should
+ * change with every release of the application, such as its version. Without it the file is cleared when the
+ * cache is opened, so a JVM never serves entries of an earlier deployment, but restarted JVMs start cold.
+ * Applications can install their own {@link ContentCache} under the {@link #CACHE_ATTRIBUTE} application attribute.
+ *
+ * <p>If <code>com.googlecode.jspcompressor.cache.preEncode</code> is <code>true</code> and the page is
+ * served through {@link com.googlecode.jspcompressor.servlet.CompressorFilter}, hits of an
+ * {@link EncodedContentCache} are written as bytes already encoded in the response charset instead of
+ * through the page writer, which is flushed first. A page can then no longer clear its buffer, for
+ * example to forward, after such a hit. Inside the body of another tag hits are always written as characters.
+ */
+@SuppressWarnings("serial")
+public abstract class CompressorTagSupport extends BodyTagSupport {
+
+	/**
+	 * Name of the application scoped attribute holding the {@link ContentCache}.
+	 */
+	public static final String CACHE_ATTRIBUTE = "com.googlecode.jspcompressor.cache";
+
+	/**
+	 * Name of the application scoped attribute holding the {@link CompressorRegistry}.
+	 */
+	public static final String REGISTRY_ATTRIBUTE = "com.googlecode.jspcompressor.registry";
+
+	protected boolean enabled = true;
+
+	//cache settings
+	private String cacheKey = null;
+	private int ttl = 0;
+	private boolean staticBody = false;
+
+	private String resolvedKey = null;
+	private boolean cacheHit = false;
+
+	/**
+	 * Compresses the tag body.
+	 *
+	 * @param content body content
+	 * @return compressed content
+	 * @throws Exception if compression fails
+	 */
+	protected abstract String compress(String content) throws Exception;
+
+	/**
+	 * Compresses the tag body straight into the enclosing writer. Nothing may be written
+	 * if compression fails, so the body can be written out uncompressed instead.
+	 * The default implementation writes the result of {@link #compress(String)}.
+	 *
+	 * @param bodyContent body content
+	 * @param out enclosing writer
+	 * @throws Exception if compression fails
+	 */
+	protected void compress(BodyContent bodyContent, Writer out) throws Exception {
+		out.write(compress(bodyContent.getString()));
+	}
+
+	/**
+	 * Returns <code>true</code> if output of this tag is cached.
+	 */
+	protected boolean isCaching() {
+		return enabled && (cacheKey != null || staticBody);
+	}
+
+	@Override
+	public int doStartTag() throws JspException {
+		resolvedKey = null;
+		cacheHit = false;
+
+		if (isCaching()) {
+			if (cacheKey == null) {
+				throw new JspException("A cacheKey is required for static bodies");
+			}
+
+			resolvedKey = getClass().getName() + '#' + cacheKey;
+			ContentCache cache = getCache();
+			try {
+				if (writeEncoded(cache)) {
+					cacheHit = true;
+					return SKIP_BODY;
+				}
+
+				String cached = cache.get(resolvedKey);
+				if (cached != null) {
+					pageContext.getOut().write(cached);
+					cacheHit = true;
+					return SKIP_BODY;
+				}
+			} catch (IOException e) {
+				throw new JspException(e.getMessage());
+			}
+		}
+		return super.doStartTag();
+	}
+
+	@Override
+	public int doEndTag() throws JspException {
+		if (cacheHit) {
+			cacheHit = false;
+			return super.doEndTag();
+		}
+
+		BodyContent bodyContent = getBodyContent();
+		JspWriter out = pageContext.getOut();
+
+		try {
+			if (bodyContent == null) {
+				return super.doEndTag();
+			}
+
+			if (resolvedKey != null) {
+				String content = bodyContent.getString();
+				String result;
+				try {
+					result = compress(content);
+					getCache().put(resolvedKey, result, staticBody ? 0 : ttl * 1000L);
+				} catch (Exception e) {
+					e.printStackTrace();
+					result = content;
+				}
+				out.write(result);
+			} else if (enabled) {
+				try {
+					compress(bodyContent, out);
+				} catch (Exception e) {
+					e.printStackTrace();
+					bodyContent.writeOut(out);
+				}
+			} else {
+				bodyContent.writeOut(out);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			resolvedKey = null;
+		}
+
+		return super.doEndTag();
+	}
+
+	/**
+	 * Writes cached output as encoded bytes, if enabled and the response buffers them in order with the page writer.
+	 *
+	 * @return <code>false</code> if nothing was written
+	 */
+	private boolean writeEncoded(ContentCache cache) throws IOException {
+		JspWriter out = pageContext.getOut();
+		if (!(cache instanceof EncodedContentCache) || out instanceof BodyContent
+				|| !(pageContext.getResponse() instanceof CompressorResponseWrapper)
+				|| !getInitParameter(pageContext.getServletContext(), CACHE_ATTRIBUTE + ".preEncode", false)) {
+			return false;
+		}
+
+		CompressorResponseWrapper response = (CompressorResponseWrapper) pageContext.getResponse();
+		if (response.getEncodedOutputStream() == null) {
+			return false;
+		}
+
+		out.flush();
+		OutputStream stream = response.getEncodedOutputStream();
+		return stream != null && ((EncodedContentCache) cache).writeTo(resolvedKey, response.getCharacterEncoding(), stream);
+	}
+
+	/**
+	 * Returns the application scoped cache, creating it on first use.
+	 */
+	protected ContentCache getCache() {
+		ContentCache cache = (ContentCache) pageContext.getAttribute(CACHE_ATTRIBUTE, PageContext.APPLICATION_SCOPE);
+		if (cache == null) {
+			synchronized (CompressorTagSupport.class) {
+				cache = (ContentCache) pageContext.getAttribute(CACHE_ATTRIBUTE, PageContext.APPLICATION_SCOPE);
+				if (cache == null) {
+					ServletContext servletContext = pageContext.getServletContext();
+					int maxEntries = getInitParameter(servletContext, CACHE_ATTRIBUTE + ".maxEntries", 1000);
+					int maxChars = getInitParameter(servletContext, CACHE_ATTRIBUTE + ".maxChars", 16 * 1024 * 1024);
+					int offHeapBytes = getInitParameter(servletContext, CACHE_ATTRIBUTE + ".offHeapBytes", 0);
+
+					String file = servletContext != null ? servletContext.getInitParameter(CACHE_ATTRIBUTE + ".file") : null;
+					String generation = servletContext != null ? servletContext.getInitParameter(CACHE_ATTRIBUTE + ".generation") : null;
+
+					if (file != null && file.trim().length() > 0) {
+						try {
+							boolean scoped = generation != null && generation.trim().length() > 0;
+							MappedContentCache mapped = new MappedContentCache(new File(file.trim()), maxEntries,
+									offHeapBytes > 0 ? offHeapBytes : 64 * 1024 * 1024, scoped ? generation.trim() : null);
+							if (!scoped) {
+								//entries may have been written by an earlier deployment
+								mapped.clear();
+							}
+							cache = mapped;
+						} catch (IOException e) {
+							//fall back to a cache of this JVM
+							e.printStackTrace();
+						}
+					}
+
+					if (cache == null && offHeapBytes > 0) {
+						cache = new OffHeapContentCache(maxEntries, offHeapBytes);
+					} else if (cache == null) {
+						cache = new LruContentCache(maxEntries, maxChars);
+					}
+					pageContext.setAttribute(CACHE_ATTRIBUTE, cache, PageContext.APPLICATION_SCOPE);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the application scoped registry of shared compressors, creating it on first use.
+	 */
+	protected CompressorRegistry getRegistry() {
+		CompressorRegistry registry = (CompressorRegistry) pageContext.getAttribute(REGISTRY_ATTRIBUTE, PageContext.APPLICATION_SCOPE);
+		if (registry == null) {
+			synchronized (CompressorTagSupport.class) {
+				registry = (CompressorRegistry) pageContext.getAttribute(REGISTRY_ATTRIBUTE, PageContext.APPLICATION_SCOPE);
+				if (registry == null) {
+					registry = new CompressorRegistry();
+					pageContext.setAttribute(REGISTRY_ATTRIBUTE, registry, PageContext.APPLICATION_SCOPE);
+				}
+			}
+		}
+		return registry;
+	}
+
+	private static int getInitParameter(ServletContext servletContext, String name, int defaultValue) {
+		String value = servletContext != null ? servletContext.getInitParameter(name) : null;
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static boolean getInitParameter(ServletContext servletContext, String name, boolean defaultValue) {
+		String value = servletContext != null ? servletContext.getInitParameter(name) : null;
+		return value != null ? Boolean.valueOf(value.trim()).booleanValue() : defaultValue;
+	}
+
+	/**
+	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setEnabled(boolean)
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the key under which compressed output is cached. Output of tags sharing a key must be identical.
+	 *
+	 * @param cacheKey cache key, or <code>null</code> to disable caching
+	 */
+	public void setCacheKey(String cacheKey) {
+		this.cacheKey = cacheKey;
+	}
+
+	/**
+	 * Sets the number of seconds cached output is kept. Default is <code>0</code>,
+	 * which keeps it until it is evicted.
+	 *
+	 * @param ttl time to live in seconds
+	 */
+	public void setTtl(int ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * If set to <code>true</code> the body is assumed to render the same content on every request,
+	 * and its compressed output is cached without expiry. A <code>cacheKey</code> must be set as well.
+	 * Default is <code>false</code>.
+	 *
+	 * @param staticBody set <code>true</code> if the body never changes
+	 */
+	public void setStatic(boolean staticBody) {
+		this.staticBody = staticBody;
+	}
+}
@@ -14,13 +14,11 @@ package com.googlecode.jspcompressor.taglib;
  * limitations under the License.
  */
 
-import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 
-import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyContent;
-import javax.servlet.jsp.tagext.BodyTagSupport;
 
 import com.yahoo.platform.yui.compressor.CssCompressor;
 
@@ -34,41 +32,25 @@ import com.yahoo.platform.yui.compressor.CssCompressor;
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
 @SuppressWarnings("serial")
-public class CssCompressorTag extends BodyTagSupport {
-	
-	private boolean enabled = true;
+public class CssCompressorTag extends CompressorTagSupport {
 	
 	//YUICompressor settings
 	private int yuiCssLineBreak = -1;
 
 	@Override
-	public int doEndTag() throws JspException {
-		
-		BodyContent bodyContent = getBodyContent();
-		String content = bodyContent.getString();
+	protected String compress(String content) throws Exception {
+		//call YUICompressor
+		StringWriter result = new StringWriter();
+		CssCompressor compressor = new CssCompressor(new StringReader(content));
+		compressor.compress(result, yuiCssLineBreak);
+		return result.toString();
+	}
 	
-		try {
-			if(enabled) {
-				//call YUICompressor
-				StringWriter result = new StringWriter();
-				CssCompressor compressor = new CssCompressor(new StringReader(content));
-				compressor.compress(result, yuiCssLineBreak);
-
-				bodyContent.clear();
-				bodyContent.append(result.toString());
-				bodyContent.writeOut(pageContext.getOut());
-			} else {
-				bodyContent.clear();
-				bodyContent.append(content);
-				bodyContent.writeOut(pageContext.getOut());
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return super.doEndTag();
+	@Override
+	protected void compress(BodyContent bodyContent, Writer out) throws Exception {
+		//call YUICompressor
+		CssCompressor compressor = new CssCompressor(bodyContent.getReader());
+		compressor.compress(out, yuiCssLineBreak);
 	}
 	
 	/**
@@ -78,11 +60,4 @@ public class CssCompressorTag extends BodyTagSupport {
 		this.yuiCssLineBreak = yuiCssLineBreak;
 	}
 	
-	/**
-	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setEnabled(boolean)
-	 */
-	public void setEnabled(boolean enabled) {
-		this.enabled = enabled;
-	}
-
 }
\ No newline at end of file
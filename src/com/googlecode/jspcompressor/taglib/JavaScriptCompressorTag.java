@@ -14,13 +14,11 @@ package com.googlecode.jspcompressor.taglib;
  * limitations under the License.
  */
 
-import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 
-import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyContent;
-import javax.servlet.jsp.tagext.BodyTagSupport;
 
 import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
 
@@ -34,9 +32,7 @@ import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
 @SuppressWarnings("serial")
-public class JavaScriptCompressorTag extends BodyTagSupport {
-	
-	private boolean enabled = true;
+public class JavaScriptCompressorTag extends CompressorTagSupport {
 	
 	//YUICompressor settings
 	private boolean yuiJsNoMunge = false;
@@ -45,34 +41,19 @@ public class JavaScriptCompressorTag extends BodyTagSupport {
 	private int yuiJsLineBreak = -1;
 
 	@Override
-	public int doEndTag() throws JspException {
-		
-		BodyContent bodyContent = getBodyContent();
-		String content = bodyContent.getString();
+	protected String compress(String content) throws Exception {
+		//call YUICompressor
+		StringWriter result = new StringWriter();
+		JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(content), null);
+		compressor.compress(result, yuiJsLineBreak, !yuiJsNoMunge, false, yuiJsPreserveAllSemiColons, yuiJsDisableOptimizations);
+		return result.toString();
+	}
 	
-		try {
-			if(enabled) {
-				//call YUICompressor
-				StringWriter result = new StringWriter();
-				JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(content), null);
-				compressor.compress(result, yuiJsLineBreak, !yuiJsNoMunge, false, yuiJsPreserveAllSemiColons, yuiJsDisableOptimizations);
-				
-				bodyContent.clear();
-				bodyContent.append(result.toString());
-				bodyContent.writeOut(pageContext.getOut());
-			} else {
-				bodyContent.clear();
-				bodyContent.append(content);
-				bodyContent.writeOut(pageContext.getOut());
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return super.doEndTag();
+	@Override
+	protected void compress(BodyContent bodyContent, Writer out) throws Exception {
+		//call YUICompressor
+		JavaScriptCompressor compressor = new JavaScriptCompressor(bodyContent.getReader(), null);
+		compressor.compress(out, yuiJsLineBreak, !yuiJsNoMunge, false, yuiJsPreserveAllSemiColons, yuiJsDisableOptimizations);
 	}
 	
 	/**
@@ -103,11 +84,4 @@ public class JavaScriptCompressorTag extends BodyTagSupport {
 		this.yuiJsLineBreak = yuiJsLineBreak;
 	}
 	
-	/**
-	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setEnabled(boolean)
-	 */
-	public void setEnabled(boolean enabled) {
-		this.enabled = enabled;
-	}
-
 }
\ No newline at end of file
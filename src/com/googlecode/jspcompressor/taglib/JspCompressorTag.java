@@ -15,11 +15,16 @@ package com.googlecode.jspcompressor.taglib;
  */
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.BodyContent;
-import javax.servlet.jsp.tagext.BodyTagSupport;
 
+import com.googlecode.jspcompressor.compressor.CompressingWriter;
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
 import com.googlecode.jspcompressor.compressor.JspCompressor;
 
 /**
@@ -31,9 +36,7 @@ import com.googlecode.jspcompressor.compressor.JspCompressor;
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
 @SuppressWarnings("serial")
-public class JspCompressorTag extends BodyTagSupport {
-	
-	private boolean enabled = true;
+public class JspCompressorTag extends CompressorTagSupport {
 	
 	//default settings
 	private boolean removeComments = true;
@@ -53,15 +56,98 @@ public class JspCompressorTag extends BodyTagSupport {
 	private boolean yuiJsDisableOptimizations = false;
 	private int yuiJsLineBreak = -1;
 	private int yuiCssLineBreak = -1;
+	private int timeBudget = -1;
+	private String preserveTags = "";
+
+	//streaming settings
+	private boolean streaming = false;
+	private String[] flushMarkers = CompressingWriter.DEFAULT_FLUSH_MARKERS;
+
+	//shared compressor and the settings it was resolved for
+	private Compressor compressor;
+	private int compressorFlags;
+	private int compressorJsLineBreak;
+	private int compressorCssLineBreak;
+	private int compressorTimeBudget;
+	private String compressorPreserveTags;
+
+	@Override
+	protected String compress(String content) throws Exception {
+		return getCompressor().compress(content);
+	}
 
 	@Override
-	public int doEndTag() throws JspException {
-		
-		BodyContent bodyContent = getBodyContent();
-		String content = bodyContent.getString();
-		
+	protected void compress(BodyContent bodyContent, Writer out) throws Exception {
+		if (!streaming) {
+			super.compress(bodyContent, out);
+			return;
+		}
+
+		CompressingWriter writer = new CompressingWriter(out, getCompressor());
+		writer.setFlushMarkers(flushMarkers);
+		Reader reader = bodyContent.getReader();
+		char[] chunk = new char[4096];
+		Exception reported = null;
+		int count = 0;
+
+		while (count >= 0) {
+			try {
+				count = reader.read(chunk);
+				if (count > 0) {
+					writer.write(chunk, 0, count);
+				} else if (count < 0) {
+					writer.finish();
+				}
+			} catch (IOException e) {
+				//a segment that fails to compress has already been written as it is, go on with the rest
+				if (writer.getFailure() == null || writer.getFailure() == reported) {
+					throw e;
+				}
+				reported = writer.getFailure();
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the shared compressor for the current settings. The compressor resolved for
+	 * the previous invocation is reused as long as the settings have not changed.
+	 */
+	private Compressor getCompressor() {
+		int flags = (removeComments ? 1 : 0)
+				| (removeMultiSpaces ? 1 << 1 : 0)
+				| (removeIntertagSpaces ? 1 << 2 : 0)
+				| (removeQuotes ? 1 << 3 : 0)
+				| (compressJavaScript ? 1 << 4 : 0)
+				| (compressCss ? 1 << 5 : 0)
+				| (removeJspComments ? 1 << 6 : 0)
+				| (skipCommentsWithStrutsForm ? 1 << 7 : 0)
+				| (yuiJsNoMunge ? 1 << 8 : 0)
+				| (yuiJsPreserveAllSemiColons ? 1 << 9 : 0)
+				| (yuiJsDisableOptimizations ? 1 << 10 : 0);
+
+		if (compressor == null || flags != compressorFlags
+				|| yuiJsLineBreak != compressorJsLineBreak || yuiCssLineBreak != compressorCssLineBreak
+				|| timeBudget != compressorTimeBudget || !preserveTags.equals(compressorPreserveTags)) {
+			String key = "jsp:" + flags + ":" + yuiJsLineBreak + ":" + yuiCssLineBreak + ":" + timeBudget + ":" + preserveTags;
+			CompressorRegistry registry = getRegistry();
+			Compressor shared = registry.get(key);
+			if (shared == null) {
+				shared = registry.register(key, createCompressor());
+			}
+
+			compressor = shared;
+			compressorFlags = flags;
+			compressorJsLineBreak = yuiJsLineBreak;
+			compressorCssLineBreak = yuiCssLineBreak;
+			compressorTimeBudget = timeBudget;
+			compressorPreserveTags = preserveTags;
+		}
+		return compressor;
+	}
+	
+	private JspCompressor createCompressor() {
 		JspCompressor compressor = new JspCompressor();
-		compressor.setEnabled(enabled);
 		compressor.setRemoveComments(removeComments);
 		compressor.setRemoveMultiSpaces(removeMultiSpaces);
 		compressor.setRemoveIntertagSpaces(removeIntertagSpaces);
@@ -73,22 +159,44 @@ public class JspCompressorTag extends BodyTagSupport {
 		compressor.setYuiJsDisableOptimizations(yuiJsDisableOptimizations);
 		compressor.setYuiJsLineBreak(yuiJsLineBreak);
 		compressor.setYuiCssLineBreak(yuiCssLineBreak);
+		compressor.setTimeBudget(timeBudget);
+		compressor.setPreserveTags(new String[] {preserveTags});
         compressor.setSkipStrutsFormComments(this.skipCommentsWithStrutsForm);
         compressor.setRemoveJspComments(this.removeJspComments);
-		
-		try {
-			bodyContent.clear();
-			bodyContent.append(compressor.compress(content));
-			bodyContent.writeOut(pageContext.getOut());
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return super.doEndTag();
+		return compressor;
 	}
 	
+	/**
+	 * If set to <code>true</code> the buffered body is compressed in segments ending at flush markers seen
+	 * outside of preserved blocks, and each segment is written and flushed to the client before the next one
+	 * is compressed. Segments that fail to compress are written as they are. Ignored if the output is cached.
+	 * Default is <code>false</code>.
+	 * 
+	 * @param streaming set <code>true</code> to enable streaming compression
+	 * @see CompressingWriter
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Sets a comma separated list of markers at which compressed content is flushed to the client 
+	 * in streaming mode. Default is <code>&lt;/head>,&lt;/header></code>.
+	 * 
+	 * @param flushMarkers comma separated list of markers
+	 * @see #setStreaming(boolean)
+	 */
+	public void setFlushMarkers(String flushMarkers) {
+		List<String> markers = new ArrayList<String>();
+		for (String marker : flushMarkers.split(",")) {
+			marker = marker.trim();
+			if (marker.length() > 0) {
+				markers.add(marker);
+			}
+		}
+		this.flushMarkers = markers.toArray(new String[markers.size()]);
+	}
+
 	/**
 	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setCompressJavaScript(boolean)
 	 */
@@ -137,19 +245,28 @@ public class JspCompressorTag extends BodyTagSupport {
 	public void setYuiCssLineBreak(int yuiCssLineBreak) {
 		this.yuiCssLineBreak = yuiCssLineBreak;
 	}
+	
+	/**
+	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setTimeBudget(long)
+	 */
+	public void setTimeBudget(int timeBudget) {
+		this.timeBudget = timeBudget;
+	}
 
 	/**
-	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setRemoveQuotes(boolean)
+	 * Sets a comma separated list of custom tags whose content is preserved, such as <code>code,svg</code>.
+	 * 
+	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setPreserveTags(String[])
 	 */
-	public void setRemoveQuotes(boolean removeQuotes) {
-		this.removeQuotes = removeQuotes;
+	public void setPreserveTags(String preserveTags) {
+		this.preserveTags = preserveTags;
 	}
 
 	/**
-	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setEnabled(boolean)
+	 * @see com.googlecode.jspcompressor.compressor.JspCompressor#setRemoveQuotes(boolean)
 	 */
-	public void setEnabled(boolean enabled) {
-		this.enabled = enabled;
+	public void setRemoveQuotes(boolean removeQuotes) {
+		this.removeQuotes = removeQuotes;
 	}
 
 	/**
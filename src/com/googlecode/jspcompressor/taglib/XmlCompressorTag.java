@@ -14,12 +14,8 @@ package com.googlecode.jspcompressor.taglib;
  * limitations under the License.
  */
 
-import java.io.IOException;
-
-import javax.servlet.jsp.JspException;
-import javax.servlet.jsp.tagext.BodyContent;
-import javax.servlet.jsp.tagext.BodyTagSupport;
-
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
 import com.googlecode.jspcompressor.compressor.XmlCompressor;
 
 /**
@@ -31,45 +27,45 @@ import com.googlecode.jspcompressor.compressor.XmlCompressor;
  * @author <a href="mailto:serg472@gmail.com">Sergiy Kovalchuk</a>
  */
 @SuppressWarnings("serial")
-public class XmlCompressorTag extends BodyTagSupport {
-	
-	private boolean enabled = true;
+public class XmlCompressorTag extends CompressorTagSupport {
 	
 	//default settings
 	private boolean removeComments = true;
 	private boolean removeIntertagSpaces = true;
 	
+	//shared compressor and the settings it was resolved for
+	private Compressor compressor;
+	private int compressorFlags;
+	
 	@Override
-	public int doEndTag() throws JspException {
-		
-		BodyContent bodyContent = getBodyContent();
-		String content = bodyContent.getString();
-		
-		XmlCompressor compressor = new XmlCompressor();
-		compressor.setEnabled(enabled);
-		compressor.setRemoveComments(removeComments);
-		compressor.setRemoveIntertagSpaces(removeIntertagSpaces);
-		
-		try {
-			bodyContent.clear();
-			bodyContent.append(compressor.compress(content));
-			bodyContent.writeOut(pageContext.getOut());
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return super.doEndTag();
+	protected String compress(String content) throws Exception {
+		return getCompressor().compress(content);
 	}
 	
 	/**
-	 * @see XmlCompressor#setEnabled(boolean)
+	 * Returns the shared compressor for the current settings. The compressor resolved for
+	 * the previous invocation is reused as long as the settings have not changed.
 	 */
-	public void setEnabled(boolean enabled) {
-		this.enabled = enabled;
+	private Compressor getCompressor() {
+		int flags = (removeComments ? 1 : 0) | (removeIntertagSpaces ? 1 << 1 : 0);
+		
+		if (compressor == null || flags != compressorFlags) {
+			String key = "xml:" + flags;
+			CompressorRegistry registry = getRegistry();
+			Compressor shared = registry.get(key);
+			if (shared == null) {
+				XmlCompressor xmlCompressor = new XmlCompressor();
+				xmlCompressor.setRemoveComments(removeComments);
+				xmlCompressor.setRemoveIntertagSpaces(removeIntertagSpaces);
+				shared = registry.register(key, xmlCompressor);
+			}
+			
+			compressor = shared;
+			compressorFlags = flags;
+		}
+		return compressor;
 	}
-
+	
 	/**
 	 * @see XmlCompressor#setRemoveComments(boolean)
 	 */
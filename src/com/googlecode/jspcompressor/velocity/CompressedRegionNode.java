@@ -0,0 +1,103 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import com.googlecode.jspcompressor.compressor.Compressor;
+
+/**
+ * Run of template nodes that has to be compressed as a whole when rendered, because dynamic
+ * content is placed within a preserved block such as &lt;script> or &lt;style>.
+ */
+public class CompressedRegionNode extends SimpleNode {
+
+	private final Node[] nodes;
+	private final Compressor compressor;
+	private final Log log;
+
+	/**
+	 * @param nodes nodes rendered and compressed together, the first of which this node replaces
+	 * @param compressor compressor used for the rendered content
+	 * @param log log compression failures are reported to
+	 */
+	public CompressedRegionNode(Node[] nodes, Compressor compressor, Log log) {
+		super(ParserTreeConstants.JJTBLOCK);
+		this.nodes = nodes;
+		this.compressor = compressor;
+		this.log = log;
+
+		first = nodes[0].getFirstToken();
+		last = nodes[nodes.length - 1].getLastToken();
+		templateName = nodes[0].getTemplateName();
+		parent = nodes[0].jjtGetParent();
+	}
+
+	@Override
+	public Object init(InternalContextAdapter context, Object data) throws TemplateInitException {
+		return data;
+	}
+
+	@Override
+	public boolean render(InternalContextAdapter context, Writer writer)
+			throws IOException, MethodInvocationException, ParseErrorException, ResourceNotFoundException {
+
+		StringWriter content = new StringWriter();
+		for (Node node : nodes) {
+			node.render(context, content);
+		}
+
+		String raw = content.toString();
+		int start = 0;
+		while (start < raw.length() && Character.isWhitespace(raw.charAt(start))) {
+			start++;
+		}
+		int end = raw.length();
+		while (end > start && Character.isWhitespace(raw.charAt(end - 1))) {
+			end--;
+		}
+
+		String body;
+		try {
+			body = compressor.compress(raw.substring(start, end));
+		} catch (Exception e) {
+			writer.write(raw);
+			String msg = "Failed to compress content";
+			log.error(msg, e);
+			throw new RuntimeException(msg, e);
+		}
+
+		if (writer instanceof StitchingWriter) {
+			((StitchingWriter) writer).writeText(raw.substring(0, start), body, raw.substring(end));
+		} else {
+			writer.write(raw.substring(0, start));
+			writer.write(body);
+			writer.write(raw.substring(end));
+		}
+		return true;
+	}
+}
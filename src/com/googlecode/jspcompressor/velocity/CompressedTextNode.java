@@ -0,0 +1,72 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.ASTText;
+
+/**
+ * Template text node whose content has been compressed when the template was parsed.
+ * Whitespace at either end is kept apart, so it can be collapsed with the surrounding
+ * output by a {@link StitchingWriter}.
+ */
+public class CompressedTextNode extends ASTText {
+
+	private final String leading;
+	private final String body;
+	private final String trailing;
+
+	/**
+	 * @param original text node this node replaces
+	 * @param leading whitespace the original text starts with
+	 * @param body compressed text without leading and trailing whitespace
+	 * @param trailing whitespace the original text ends with
+	 */
+	public CompressedTextNode(ASTText original, String leading, String body, String trailing) {
+		super(ParserTreeConstants.JJTTEXT);
+		this.leading = leading;
+		this.body = body;
+		this.trailing = trailing;
+
+		first = original.getFirstToken();
+		last = original.getLastToken();
+		templateName = original.getTemplateName();
+		parent = original.jjtGetParent();
+	}
+
+	@Override
+	public Object init(InternalContextAdapter context, Object data) throws TemplateInitException {
+		return data;
+	}
+
+	@Override
+	public boolean render(InternalContextAdapter context, Writer writer) throws IOException {
+		if (context.getAllowRendering()) {
+			if (writer instanceof StitchingWriter) {
+				((StitchingWriter) writer).writeText(leading, body, trailing);
+			} else {
+				writer.write(leading);
+				writer.write(body);
+				writer.write(trailing);
+			}
+		}
+		return true;
+	}
+}
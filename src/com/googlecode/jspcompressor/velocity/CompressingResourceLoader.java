@@ -0,0 +1,242 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.resource.ContentResource;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.loader.ResourceLoader;
+
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.JspCompressor;
+import com.googlecode.jspcompressor.compressor.XmlCompressor;
+
+/**
+ * Resource loader that wraps another resource loader and compresses template sources as they are loaded,
+ * so templates are compressed once per load instead of on every render. VTL comments are removed before
+ * compression, since line comments end at a line break the compressor would remove, and
+ * <code>#[[ ... ]]#</code> blocks are left untouched. References and directives pass through the compressor
+ * like any other text, which keeps them intact as long as JavaScript compression is not applied to scripts
+ * containing directives.
+ *
+ * <p>Compressed sources are cached against the last modification time reported by the wrapped loader,
+ * so a template is compressed again only when it changes.
+ *
+ * <p>Configured with these properties, shown for a loader named <code>compressed</code>:
+ * <pre>
+ * resource.loader = compressed
+ * compressed.resource.loader.class = com.googlecode.jspcompressor.velocity.CompressingResourceLoader
+ * compressed.resource.loader.delegate.class = org.apache.velocity.runtime.resource.loader.FileResourceLoader
+ * compressed.resource.loader.delegate.path = /path/to/templates
+ * compressed.resource.loader.compressor = html
+ * </pre>
+ * All <code>delegate.</code> properties are passed to the wrapped loader. Other properties are:
+ * <ul>
+ * <li><code>compressor</code> - <code>html</code> to use {@link JspCompressor} or <code>xml</code>
+ * to use {@link XmlCompressor}, default is <code>html</code></li>
+ * <li><code>encoding</code> - template encoding, default is the <code>input.encoding</code> runtime property</li>
+ * <li><code>removeComments</code>, <code>removeMultiSpaces</code>, <code>removeIntertagSpaces</code>,
+ * <code>removeQuotes</code>, <code>compressJavaScript</code>, <code>compressCss</code> - compressor
+ * settings with the same defaults as {@link JspCompressor}. For XML only <code>removeComments</code>
+ * and <code>removeIntertagSpaces</code> apply.</li>
+ * <li><code>preserveTags</code> - comma separated list of custom tags whose content is preserved,
+ * see {@link JspCompressor#setPreserveTags(String[])}</li>
+ * </ul>
+ */
+public class CompressingResourceLoader extends ResourceLoader {
+
+	private static final String tempUnparsedBlock = "%%%VTLUNPARSED~#%%%";
+
+	private static final Pattern unparsedPattern = Pattern.compile("#\\[\\[.*?\\]\\]#", Pattern.DOTALL);
+	private static final Pattern blockCommentPattern = Pattern.compile("#\\*.*?\\*#", Pattern.DOTALL);
+	private static final Pattern lineCommentPattern = Pattern.compile("(?<!\\\\)##[^\\n]*\\n?");
+	private static final Pattern tempUnparsedPattern = Pattern.compile("%%%VTLUNPARSED~(\\d+?)%%%");
+
+	private ResourceLoader delegate;
+	private Compressor compressor;
+	private String encoding;
+
+	private final ConcurrentMap<String, CompressedSource> sources = new ConcurrentHashMap<String, CompressedSource>();
+
+	public void init(ExtendedProperties configuration) {
+		String delegateClass = configuration.getString("delegate.class");
+		if (delegateClass == null) {
+			throw new VelocityException("No delegate.class configured for " + getClass().getName());
+		}
+
+		try {
+			delegate = (ResourceLoader) Class.forName(delegateClass).getDeclaredConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			throw new VelocityException("Failed to create resource loader " + delegateClass, e.getCause());
+		} catch (Exception e) {
+			throw new VelocityException("Failed to create resource loader " + delegateClass, e);
+		}
+
+		ExtendedProperties delegateConfiguration = configuration.subset("delegate");
+		if (delegateConfiguration == null) {
+			delegateConfiguration = new ExtendedProperties();
+		}
+		delegate.commonInit(rsvc, delegateConfiguration);
+		delegate.init(delegateConfiguration);
+
+		encoding = configuration.getString("encoding",
+				rsvc.getString(RuntimeConstants.INPUT_ENCODING, RuntimeConstants.ENCODING_DEFAULT));
+
+		if ("xml".equalsIgnoreCase(configuration.getString("compressor", "html"))) {
+			XmlCompressor xmlCompressor = new XmlCompressor();
+			xmlCompressor.setRemoveComments(configuration.getBoolean("removeComments", true));
+			xmlCompressor.setRemoveIntertagSpaces(configuration.getBoolean("removeIntertagSpaces", true));
+			compressor = xmlCompressor;
+		} else {
+			JspCompressor jspCompressor = new JspCompressor();
+			jspCompressor.setRemoveComments(configuration.getBoolean("removeComments", true));
+			jspCompressor.setRemoveMultiSpaces(configuration.getBoolean("removeMultiSpaces", true));
+			jspCompressor.setRemoveIntertagSpaces(configuration.getBoolean("removeIntertagSpaces", false));
+			jspCompressor.setRemoveQuotes(configuration.getBoolean("removeQuotes", false));
+			jspCompressor.setCompressJavaScript(configuration.getBoolean("compressJavaScript", false));
+			jspCompressor.setCompressCss(configuration.getBoolean("compressCss", false));
+			jspCompressor.setPreserveTags(configuration.getStringArray("preserveTags"));
+			compressor = jspCompressor;
+		}
+	}
+
+	public InputStream getResourceStream(String source) throws ResourceNotFoundException {
+		ContentResource probe = new ContentResource();
+		probe.setName(source);
+		long lastModified = delegate.getLastModified(probe);
+
+		CompressedSource cached = sources.get(source);
+		if (cached == null || cached.lastModified != lastModified || lastModified == 0) {
+			String template = readTemplate(source);
+
+			String compressed;
+			try {
+				compressed = compress(template);
+			} catch (Exception e) {
+				log.warn("Failed to compress template " + source + ", serving it uncompressed", e);
+				compressed = template;
+			}
+
+			try {
+				cached = new CompressedSource(lastModified, compressed.getBytes(encoding));
+			} catch (UnsupportedEncodingException e) {
+				throw new VelocityException("Unsupported encoding " + encoding, e);
+			}
+			sources.put(source, cached);
+		}
+		return new ByteArrayInputStream(cached.bytes);
+	}
+
+	public boolean isSourceModified(Resource resource) {
+		return delegate.isSourceModified(resource);
+	}
+
+	public long getLastModified(Resource resource) {
+		return delegate.getLastModified(resource);
+	}
+
+	public boolean resourceExists(String name) {
+		return delegate.resourceExists(name);
+	}
+
+	/**
+	 * Compresses template source, leaving VTL intact.
+	 *
+	 * @param template template source
+	 * @return compressed template source
+	 * @throws Exception if compression fails
+	 */
+	String compress(String template) throws Exception {
+		//preserve unparsed blocks
+		List<String> unparsedBlocks = new ArrayList<String>();
+		Matcher matcher = unparsedPattern.matcher(template);
+		int index = 0;
+		StringBuffer sb = new StringBuffer();
+		while (matcher.find()) {
+			unparsedBlocks.add(matcher.group(0));
+			matcher.appendReplacement(sb, tempUnparsedBlock.replaceFirst("#", Integer.toString(index++)));
+		}
+		matcher.appendTail(sb);
+
+		//comments render nothing, line comments include the line break
+		String result = blockCommentPattern.matcher(sb.toString()).replaceAll("");
+		result = lineCommentPattern.matcher(result).replaceAll("");
+
+		result = compressor.compress(result);
+
+		//put unparsed blocks back
+		matcher = tempUnparsedPattern.matcher(result);
+		sb = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(sb, Matcher.quoteReplacement(unparsedBlocks.get(Integer.parseInt(matcher.group(1)))));
+		}
+		matcher.appendTail(sb);
+
+		return sb.toString();
+	}
+
+	private String readTemplate(String source) throws ResourceNotFoundException {
+		InputStream in = delegate.getResourceStream(source);
+		if (in == null) {
+			throw new ResourceNotFoundException("Unable to find resource '" + source + "'");
+		}
+
+		try {
+			Reader reader = new InputStreamReader(in, encoding);
+			StringBuilder template = new StringBuilder();
+			char[] buffer = new char[4096];
+			int len;
+			while ((len = reader.read(buffer)) != -1) {
+				template.append(buffer, 0, len);
+			}
+			return template.toString();
+		} catch (IOException e) {
+			throw new ResourceNotFoundException("Failed to read resource '" + source + "': " + e.getMessage());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+	}
+
+	private static class CompressedSource {
+		private final long lastModified;
+		private final byte[] bytes;
+
+		CompressedSource(long lastModified, byte[] bytes) {
+			this.lastModified = lastModified;
+			this.bytes = bytes;
+		}
+	}
+}
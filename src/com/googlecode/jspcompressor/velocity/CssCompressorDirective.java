@@ -14,9 +14,9 @@ package com.googlecode.jspcompressor.velocity;
  * limitations under the License.
  */
 
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
 
 import org.apache.velocity.context.InternalContextAdapter;
@@ -60,36 +60,37 @@ public class CssCompressorDirective extends Directive {
 	@Override
 	public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
 		super.init(rs, context, node);
+		VelocityWarmup.start(rs);
 		log = rs.getLog();
 		
-		//set compressor properties
-		enabled = rs.getBoolean("userdirective.compressCss.enabled", true);
-		yuiCssLineBreak = rs.getInt("userdirective.compressCss.yuiCssLineBreak", -1);
+		//set compressor properties, arguments of this block take precedence over runtime properties
+		DirectiveSettings settings = new DirectiveSettings(rs, "compressCss", context, node);
+		enabled = settings.getBoolean("enabled", true);
+		yuiCssLineBreak = settings.getInt("yuiCssLineBreak", -1);
+		settings.checkArguments();
 	}
 
     public boolean render(InternalContextAdapter context, Writer writer, Node node) 
     		throws IOException, ResourceNotFoundException, ParseErrorException, MethodInvocationException {
     	
     	//render content
-    	StringWriter content = new StringWriter();
-		node.jjtGetChild(0).render(context, content);
+    	CharArrayWriter content = new CharArrayWriter();
+		DirectiveSettings.getBody(node).render(context, content);
 		
-		//compress
+		//compress straight into the target writer, YUI Compressor writes its result in one go
 		if(enabled) {
 			try {
-				StringWriter result = new StringWriter();
-				CssCompressor compressor = new CssCompressor(new StringReader(content.toString()));
-				compressor.compress(result, yuiCssLineBreak);
-				writer.write(result.toString());
+				CssCompressor compressor = new CssCompressor(new CharArrayReader(content.toCharArray()));
+				compressor.compress(writer, yuiCssLineBreak);
 			} catch (Exception e) {
-				writer.write(content.toString());
-				String msg = "Failed to compress content: "+content.toString();
+				content.writeTo(writer);
+				String msg = "Failed to compress content";
 	            log.error(msg, e);
 	            throw new RuntimeException(msg, e);
 	            
 			}
 		} else {
-			writer.write(content.toString());
+			content.writeTo(writer);
 		}
 		
 		return true;
@@ -0,0 +1,181 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
+
+/**
+ * Settings of a single compressor directive. Each setting is read from the runtime property
+ * <code>userdirective.&lt;directive>.&lt;name></code> unless it is overridden by a directive argument.
+ * Arguments are string literals listing <code>name=value</code> pairs separated by commas,
+ * for example <code>#compressJsp("removeIntertagSpaces=true, removeQuotes=true")</code>.
+ */
+public class DirectiveSettings {
+
+	/**
+	 * Name of the runtime application attribute holding the {@link CompressorRegistry} shared
+	 * by the directives of the runtime.
+	 */
+	public static final String REGISTRY_ATTRIBUTE = "com.googlecode.jspcompressor.registry";
+
+	private final RuntimeServices rs;
+	private final String prefix;
+	private final Node node;
+
+	private final Map<String, String> arguments = new HashMap<String, String>();
+	private final Set<String> used = new HashSet<String>();
+
+	/**
+	 * Reads the arguments of a directive.
+	 *
+	 * @param rs Velocity runtime
+	 * @param directive directive name used in runtime property names, such as <code>compressHtml</code>
+	 * @param context context the directive is initialized with
+	 * @param node directive node, the last child of which is the directive body
+	 * @throws TemplateInitException if an argument is not a string literal of <code>name=value</code> pairs
+	 */
+	public DirectiveSettings(RuntimeServices rs, String directive, InternalContextAdapter context, Node node)
+			throws TemplateInitException {
+		this.rs = rs;
+		this.prefix = "userdirective." + directive + ".";
+		this.node = node;
+
+		for (int i = 0; i < node.jjtGetNumChildren() - 1; i++) {
+			Node argument = node.jjtGetChild(i);
+			if (!(argument instanceof ASTStringLiteral)) {
+				throw error("Arguments of #" + directive + " must be string literals");
+			}
+
+			for (String pair : String.valueOf(argument.value(context)).split(",")) {
+				pair = pair.trim();
+				if (pair.length() == 0) {
+					continue;
+				}
+
+				int index = pair.indexOf('=');
+				if (index <= 0) {
+					throw error("Invalid #" + directive + " argument '" + pair + "', expected name=value");
+				}
+				arguments.put(pair.substring(0, index).trim(), pair.substring(index + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Returns a boolean setting.
+	 *
+	 * @param name setting name
+	 * @param defaultValue value used if the setting is neither given as an argument nor as a runtime property
+	 */
+	public boolean getBoolean(String name, boolean defaultValue) {
+		used.add(name);
+		String value = arguments.get(name);
+		return value != null ? Boolean.valueOf(value).booleanValue() : rs.getBoolean(prefix + name, defaultValue);
+	}
+
+	/**
+	 * Returns an integer setting.
+	 *
+	 * @param name setting name
+	 * @param defaultValue value used if the setting is neither given as an argument nor as a runtime property
+	 * @throws TemplateInitException if the argument is not a number
+	 */
+	public int getInt(String name, int defaultValue) throws TemplateInitException {
+		used.add(name);
+		String value = arguments.get(name);
+		if (value == null) {
+			return rs.getInt(prefix + name, defaultValue);
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw error("Invalid value '" + value + "' of " + name);
+		}
+	}
+
+	/**
+	 * Returns a list setting. Values given as an argument are separated by white space, since
+	 * commas separate arguments. Values given as a runtime property are separated by commas.
+	 *
+	 * @param name setting name
+	 * @return values, empty if the setting is neither given as an argument nor as a runtime property
+	 */
+	public String[] getStringArray(String name) {
+		used.add(name);
+		String value = arguments.get(name);
+		if (value != null) {
+			return value.length() > 0 ? value.split("\\s+") : new String[0];
+		}
+		String[] values = rs.getConfiguration().getStringArray(prefix + name);
+		return values != null ? values : new String[0];
+	}
+
+	/**
+	 * Verifies that all arguments have been read, so misspelled settings are not silently ignored.
+	 *
+	 * @throws TemplateInitException if an argument names an unknown setting
+	 */
+	public void checkArguments() throws TemplateInitException {
+		for (String name : arguments.keySet()) {
+			if (!used.contains(name)) {
+				throw error("Unknown setting " + name);
+			}
+		}
+	}
+
+	/**
+	 * Returns the body of a block directive, which follows its arguments.
+	 *
+	 * @param node directive node
+	 */
+	public static Node getBody(Node node) {
+		return node.jjtGetChild(node.jjtGetNumChildren() - 1);
+	}
+
+	/**
+	 * Returns the compressor registry of a runtime, creating it on first use.
+	 *
+	 * @param rs Velocity runtime
+	 */
+	public static CompressorRegistry getRegistry(RuntimeServices rs) {
+		CompressorRegistry registry = (CompressorRegistry) rs.getApplicationAttribute(REGISTRY_ATTRIBUTE);
+		if (registry == null) {
+			synchronized (rs) {
+				registry = (CompressorRegistry) rs.getApplicationAttribute(REGISTRY_ATTRIBUTE);
+				if (registry == null) {
+					registry = new CompressorRegistry();
+					rs.setApplicationAttribute(REGISTRY_ATTRIBUTE, registry);
+				}
+			}
+		}
+		return registry;
+	}
+
+	private TemplateInitException error(String message) {
+		return new TemplateInitException(message, node.getTemplateName(), node.getColumn(), node.getLine());
+	}
+}
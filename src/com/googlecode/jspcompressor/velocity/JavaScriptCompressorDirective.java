@@ -14,9 +14,9 @@ package com.googlecode.jspcompressor.velocity;
  * limitations under the License.
  */
 
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
 
 import org.apache.velocity.context.InternalContextAdapter;
@@ -63,38 +63,40 @@ public class JavaScriptCompressorDirective extends Directive {
 	@Override
 	public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
 		super.init(rs, context, node);
+		VelocityWarmup.start(rs);
 		log = rs.getLog();
 		
-		//set compressor properties
-		enabled = rs.getBoolean("userdirective.compressJs.enabled", true);
-		yuiJsNoMunge = rs.getBoolean("userdirective.compressJs.yuiJsNoMunge", false);
-		yuiJsPreserveAllSemiColons = rs.getBoolean("userdirective.compressJs.yuiJsPreserveAllSemiColons", false);
-		yuiJsLineBreak = rs.getInt("userdirective.compressJs.yuiJsLineBreak", -1);
+		//set compressor properties, arguments of this block take precedence over runtime properties
+		DirectiveSettings settings = new DirectiveSettings(rs, "compressJs", context, node);
+		enabled = settings.getBoolean("enabled", true);
+		yuiJsNoMunge = settings.getBoolean("yuiJsNoMunge", false);
+		yuiJsPreserveAllSemiColons = settings.getBoolean("yuiJsPreserveAllSemiColons", false);
+		yuiJsDisableOptimizations = settings.getBoolean("yuiJsDisableOptimizations", false);
+		yuiJsLineBreak = settings.getInt("yuiJsLineBreak", -1);
+		settings.checkArguments();
 	}
 
     public boolean render(InternalContextAdapter context, Writer writer, Node node) 
     		throws IOException, ResourceNotFoundException, ParseErrorException, MethodInvocationException {
     	
     	//render content
-    	StringWriter content = new StringWriter();
-		node.jjtGetChild(0).render(context, content);
+    	CharArrayWriter content = new CharArrayWriter();
+		DirectiveSettings.getBody(node).render(context, content);
 		
-		//compress
+		//compress straight into the target writer, YUI Compressor writes its result in one go
 		if(enabled) {
 			try {
-				StringWriter result = new StringWriter();
-				JavaScriptCompressor compressor = new JavaScriptCompressor(new StringReader(content.toString()), null);
-				compressor.compress(result, yuiJsLineBreak, !yuiJsNoMunge, false, yuiJsPreserveAllSemiColons, yuiJsDisableOptimizations);
-				writer.write(result.toString());
+				JavaScriptCompressor compressor = new JavaScriptCompressor(new CharArrayReader(content.toCharArray()), null);
+				compressor.compress(writer, yuiJsLineBreak, !yuiJsNoMunge, false, yuiJsPreserveAllSemiColons, yuiJsDisableOptimizations);
 			} catch (Exception e) {
-				writer.write(content.toString());
-				String msg = "Failed to compress content: "+content.toString();
+				content.writeTo(writer);
+				String msg = "Failed to compress content";
 	            log.error(msg, e);
 	            throw new RuntimeException(msg, e);
 	            
 			}
 		} else {
-			writer.write(content.toString());
+			content.writeTo(writer);
 		}
 		
 		return true;
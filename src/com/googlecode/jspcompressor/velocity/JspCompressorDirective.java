@@ -15,8 +15,10 @@ package com.googlecode.jspcompressor.velocity;
  */
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
@@ -25,14 +27,30 @@ import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.TemplateInitException;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.ASTBlock;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTElseIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTElseStatement;
+import org.apache.velocity.runtime.parser.node.ASTIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTText;
 import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.NodeUtils;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.apache.velocity.runtime.log.Log;
 
+import com.googlecode.jspcompressor.compressor.CompressingWriter;
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
 import com.googlecode.jspcompressor.compressor.JspCompressor;
 
 /**
  * Velocity directive that compresses an HTML content within #compressHtml ... #end block.
  * Compression parameters are set by default (no JavaScript and CSS compression).
+ * They are read from <code>userdirective.compressHtml.*</code> runtime properties and can be
+ * overridden for a single block with arguments such as <code>#compressJsp("removeIntertagSpaces=true")</code>.
+ * Custom tags to preserve are listed with <code>userdirective.compressHtml.preserveTags = code, svg</code>,
+ * or separated by spaces in an argument such as <code>#compressJsp("preserveTags=code svg")</code>.
  * 
  * @see com.googlecode.jspcompressor.compressor.JspCompressor
  * 
@@ -40,9 +58,26 @@ import com.googlecode.jspcompressor.compressor.JspCompressor;
  */
 public class JspCompressorDirective extends Directive {
 	
-	private static final JspCompressor compressor = new JspCompressor();
+	//shared with every block configured the same way, never reconfigured once registered
+	private JspCompressor compressor;
+	
+	//cut markers would change the output, content is written out when the buffer fills up instead
+	private static final String[] NO_FLUSH_MARKERS = new String[0];
 	
 	private Log log;
+	
+	private int maxBufferSize = 8192;
+	
+	//preserved block openers and the closers that end them, must match the compressor patterns
+	private static final String[] OPENERS = {"<script", "<style", "<pre", "<textarea", "<!--", "<![cdata[", "<%"};
+	private static final String[] CLOSERS = {"</script>", "</style>", "</pre>", "</textarea>", "-->", "]]>", "%>"};
+	
+	//openers and closers including the custom preserved tags of the compressor
+	private String[] openers = OPENERS;
+	private String[] closers = CLOSERS;
+	
+	//true if the template text within the block has been compressed when the template was parsed
+	private boolean precompressed = false;
 
     public String getName() {
 		return "compressJsp";
@@ -55,40 +90,227 @@ public class JspCompressorDirective extends Directive {
 	@Override
 	public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
 		super.init(rs, context, node);
+		VelocityWarmup.start(rs);
 		log = rs.getLog();
+		maxBufferSize = rs.getInt("userdirective.compressHtml.maxBufferSize", 8192);
+		
+		//resolve the compressor for these settings, blocks with the same settings share one instance
+		DirectiveSettings settings = new DirectiveSettings(rs, "compressHtml", context, node);
+		JspCompressor configured = new JspCompressor();
+		configured.setEnabled(settings.getBoolean("enabled", true));
+		configured.setRemoveComments(settings.getBoolean("removeComments", true));
+		configured.setRemoveMultiSpaces(settings.getBoolean("removeMultiSpaces", true));
+		configured.setRemoveIntertagSpaces(settings.getBoolean("removeIntertagSpaces", false));
+		configured.setRemoveQuotes(settings.getBoolean("removeQuotes", false));
+		configured.setCompressJavaScript(settings.getBoolean("compressJavaScript", false));
+		configured.setCompressCss(settings.getBoolean("compressCss", false));
+		configured.setYuiJsNoMunge(settings.getBoolean("yuiJsNoMunge", false));
+		configured.setYuiJsPreserveAllSemiColons(settings.getBoolean("yuiJsPreserveAllSemiColons", false));
+		configured.setYuiJsDisableOptimizations(settings.getBoolean("yuiJsDisableOptimizations", false));
+		configured.setYuiJsLineBreak(settings.getInt("yuiJsLineBreak", -1));
+		configured.setYuiCssLineBreak(settings.getInt("yuiCssLineBreak", -1));
+		configured.setTimeBudget(settings.getInt("timeBudget", -1));
+		try {
+			configured.setPreserveTags(settings.getStringArray("preserveTags"));
+		} catch (IllegalArgumentException e) {
+			throw new TemplateInitException(e.getMessage(), node.getTemplateName(), node.getColumn(), node.getLine());
+		}
+		boolean skipStrutsFormComments = settings.getBoolean("skipStrutsFormComments", 
+				rs.getBoolean("userdirective.compressJsp.skipStrutsFormComments", false));
+		configured.setSkipStrutsFormComments(skipStrutsFormComments);
+		configured.setRemoveJspComments(settings.getBoolean("removeJspComments", 
+				rs.getBoolean("userdiretive.compressJsp.removeJspComments", false)));
+		settings.checkArguments();
+		
+		String key = "jsp:" + configured.isEnabled() + ":" + configured.isRemoveComments() + ":" + configured.isRemoveMultiSpaces()
+				+ ":" + configured.isRemoveIntertagSpaces() + ":" + configured.isRemoveQuotes() 
+				+ ":" + configured.isCompressJavaScript() + ":" + configured.isCompressCss() 
+				+ ":" + configured.isYuiJsNoMunge() + ":" + configured.isYuiJsPreserveAllSemiColons() 
+				+ ":" + configured.isYuiJsDisableOptimizations() + ":" + configured.getYuiJsLineBreak() 
+				+ ":" + configured.getYuiCssLineBreak() + ":" + configured.getTimeBudget() + ":" + skipStrutsFormComments 
+				+ ":" + configured.isRemoveJspComments() + ":" + Arrays.toString(configured.getPreserveTags());
+		CompressorRegistry registry = DirectiveSettings.getRegistry(rs);
+		Compressor shared = registry.get(key);
+		if (shared == null) {
+			shared = registry.register(key, configured);
+		}
+		compressor = (JspCompressor) shared;
+		
+		String[] tags = compressor.getPreserveTags();
+		if (tags.length > 0) {
+			openers = new String[OPENERS.length + tags.length];
+			closers = new String[openers.length];
+			System.arraycopy(OPENERS, 0, openers, 0, OPENERS.length);
+			System.arraycopy(CLOSERS, 0, closers, 0, OPENERS.length);
+			for (int i = 0; i < tags.length; i++) {
+				openers[OPENERS.length + i] = "<" + tags[i];
+				closers[OPENERS.length + i] = "</" + tags[i] + ">";
+			}
+		}
+        
+        if (compressor.isEnabled() && rs.getBoolean("userdirective.compressHtml.precompressText", true)) {
+        	precompressed = precompressText(DirectiveSettings.getBody(node));
+        }
+	}
+	
+	/**
+	 * Compresses the template text within the block once, so only dynamic output is left to deal with
+	 * when the block is rendered. Text nodes within #if and #foreach are compressed as well. Runs of nodes
+	 * that place dynamic content within a preserved block, such as &lt;script> or &lt;style>, are
+	 * compressed together when rendered instead. Other dynamic output, such as references, is written as is.
+	 * Can be turned off with <code>userdirective.compressHtml.precompressText = false</code>.
+	 * 
+	 * @return <code>true</code> if the template text has been replaced by compressed text
+	 */
+	private boolean precompressText(Node block) {
+		List<Node> parents = new ArrayList<Node>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		List<Node> replacements = new ArrayList<Node>();
+		
+		try {
+			if (!planText(block, parents, indexes, replacements)) {
+				return false;
+			}
+		} catch (Exception e) {
+			log.warn("Failed to compress template text, block is compressed when rendered", e);
+			return false;
+		}
+		
+		for (int i = 0; i < replacements.size(); i++) {
+			parents.get(i).jjtAddChild(replacements.get(i), indexes.get(i).intValue());
+		}
+		return true;
+	}
+	
+	/**
+	 * Works out the replacements for the children of the given node. Dynamic output is assumed 
+	 * not to open or close preserved blocks.
+	 * 
+	 * @return <code>false</code> if the node ends within a preserved block
+	 */
+	private boolean planText(Node node, List<Node> parents, List<Integer> indexes, List<Node> replacements) 
+			throws Exception {
+		
+		String closer = null;
+		int regionStart = -1;
 		
-		//set compressor properties
-		compressor.setEnabled(rs.getBoolean("userdirective.compressHtml.enabled", true));
-		compressor.setRemoveComments(rs.getBoolean("userdirective.compressHtml.removeComments", true));
-		compressor.setRemoveMultiSpaces(rs.getBoolean("userdirective.compressHtml.removeMultiSpaces", true));
-		compressor.setRemoveIntertagSpaces(rs.getBoolean("userdirective.compressHtml.removeIntertagSpaces", false));
-		compressor.setRemoveQuotes(rs.getBoolean("userdirective.compressHtml.removeQuotes", false));
-		compressor.setCompressJavaScript(rs.getBoolean("userdirective.compressHtml.compressJavaScript", false));
-		compressor.setCompressCss(rs.getBoolean("userdirective.compressHtml.compressCss", false));
-		compressor.setYuiJsNoMunge(rs.getBoolean("userdirective.compressHtml.yuiJsNoMunge", false));
-		compressor.setYuiJsPreserveAllSemiColons(rs.getBoolean("userdirective.compressHtml.yuiJsPreserveAllSemiColons", false));
-		compressor.setYuiJsLineBreak(rs.getInt("userdirective.compressHtml.yuiJsLineBreak", -1));
-		compressor.setYuiCssLineBreak(rs.getInt("userdirective.compressHtml.yuiCssLineBreak", -1));
-        compressor.setSkipStrutsFormComments(rs.getBoolean("userdirective.compressJsp.skipStrutsFormComments", false));
-        compressor.setRemoveJspComments(rs.getBoolean("userdiretive.compressJsp.removeJspComments", false));
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			Node child = node.jjtGetChild(i);
+			
+			if (child instanceof ASTText) {
+				String content = NodeUtils.tokenLiteral(child.getFirstToken());
+				String after = scan(content, closer);
+				
+				if (closer == null && after == null) {
+					parents.add(node);
+					indexes.add(Integer.valueOf(i));
+					replacements.add(compressText((ASTText) child, content));
+				} else if (closer == null) {
+					regionStart = i;
+				} else if (after == null) {
+					//region ends here, render and compress its nodes together
+					Node[] nodes = new Node[i - regionStart + 1];
+					for (int j = 0; j < nodes.length; j++) {
+						nodes[j] = node.jjtGetChild(regionStart + j);
+					}
+					for (int j = 0; j < nodes.length; j++) {
+						parents.add(node);
+						indexes.add(Integer.valueOf(regionStart + j));
+						replacements.add(j == 0 ? new CompressedRegionNode(nodes, compressor, log) 
+								: new SimpleNode(ParserTreeConstants.JJTBLOCK));
+					}
+					regionStart = -1;
+				}
+				closer = after;
+			} else if (closer == null && (child instanceof ASTBlock || child instanceof ASTIfStatement 
+					|| child instanceof ASTElseIfStatement || child instanceof ASTElseStatement
+					|| (child instanceof ASTDirective && "foreach".equals(((ASTDirective) child).getDirectiveName())))) {
+				if (!planText(child, parents, indexes, replacements)) {
+					return false;
+				}
+			}
+		}
+		return closer == null;
+	}
+	
+	private CompressedTextNode compressText(ASTText text, String content) throws Exception {
+		int start = 0;
+		while (start < content.length() && Character.isWhitespace(content.charAt(start))) {
+			start++;
+		}
+		int end = content.length();
+		while (end > start && Character.isWhitespace(content.charAt(end - 1))) {
+			end--;
+		}
+		
+		return new CompressedTextNode(text, content.substring(0, start), 
+				compressor.compress(content.substring(start, end)), content.substring(end));
+	}
+	
+	/**
+	 * Scans text for preserved blocks.
+	 * 
+	 * @param text text to scan
+	 * @param closer closer of the preserved block the text starts within, or <code>null</code>
+	 * @return closer of the preserved block the text ends within, or <code>null</code>
+	 */
+	private String scan(String text, String closer) {
+		String lower = text.toLowerCase();
+		int index = 0;
+		
+		while (true) {
+			if (closer != null) {
+				int end = lower.indexOf(closer, index);
+				if (end < 0) {
+					return closer;
+				}
+				index = end + closer.length();
+				closer = null;
+			}
+			
+			index = lower.indexOf('<', index);
+			if (index < 0) {
+				return null;
+			}
+			
+			for (int i = 0; i < openers.length; i++) {
+				if (lower.startsWith(openers[i], index)) {
+					closer = closers[i];
+					index += openers[i].length() - 1;
+					break;
+				}
+			}
+			index++;
+		}
 	}
 
     public boolean render(InternalContextAdapter context, Writer writer, Node node) 
     		throws IOException, ResourceNotFoundException, ParseErrorException, MethodInvocationException {
     	
-    	//render content
-    	StringWriter content = new StringWriter();
-		node.jjtGetChild(0).render(context, content);
-		
-		//compress
+    	if (precompressed) {
+    		//template text is compressed already, only join it with the dynamic output
+    		StitchingWriter content = new StitchingWriter(writer, compressor.isRemoveMultiSpaces(), compressor.isRemoveIntertagSpaces());
+    		DirectiveSettings.getBody(node).render(context, content);
+    		content.finish();
+    		return true;
+    	}
+    	
+    	//render content straight into the compressor, which writes out compressed content as it becomes safe to
+    	CompressingWriter content = new CompressingWriter(writer, compressor);
+    	content.setFlushMarkers(NO_FLUSH_MARKERS);
+    	content.setMaxBufferSize(maxBufferSize);
+    	
 		try {
-			writer.write(compressor.compress(content.toString()));
-		} catch (Exception e) {
-			writer.write(content.toString());
-			String msg = "Failed to compress content: "+content.toString();
-            log.error(msg, e);
-            throw new RuntimeException(msg, e);
-            
+			DirectiveSettings.getBody(node).render(context, content);
+			content.finish();
+		} catch (IOException e) {
+			if (content.getFailure() == null) {
+				throw e;
+			}
+			//the content that failed to compress has been written as is
+			String msg = "Failed to compress content";
+            log.error(msg, content.getFailure());
+            throw new RuntimeException(msg, content.getFailure());
 		}
 		return true;
     	
@@ -0,0 +1,116 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that joins pre-compressed template text with dynamic output. Dynamic output is written as is,
+ * whitespace at the edges of template text is collapsed the way the compressor would have collapsed it:
+ * dropped at the start and end of the block, between two tags if inter-tag spaces are removed and next
+ * to other whitespace, and reduced to a single space otherwise if multiple spaces are removed.
+ */
+public class StitchingWriter extends Writer {
+
+	private final Writer out;
+	private final boolean removeMultiSpaces;
+	private final boolean removeIntertagSpaces;
+
+	private final StringBuilder pending = new StringBuilder();
+	private char lastChar = 0;
+
+	/**
+	 * @param out writer the joined content is written to
+	 * @param removeMultiSpaces <code>true</code> if the compressor replaces whitespace runs with a single space
+	 * @param removeIntertagSpaces <code>true</code> if the compressor removes whitespace between tags
+	 */
+	public StitchingWriter(Writer out, boolean removeMultiSpaces, boolean removeIntertagSpaces) {
+		this.out = out;
+		this.removeMultiSpaces = removeMultiSpaces;
+		this.removeIntertagSpaces = removeIntertagSpaces;
+	}
+
+	/**
+	 * Writes pre-compressed template text.
+	 *
+	 * @param leading whitespace the text starts with
+	 * @param body compressed text without leading and trailing whitespace
+	 * @param trailing whitespace the text ends with
+	 */
+	public void writeText(String leading, String body, String trailing) throws IOException {
+		pending.append(leading);
+		if (body.length() == 0) {
+			pending.append(trailing);
+			return;
+		}
+
+		writePending(body.charAt(0));
+		out.write(body);
+		lastChar = body.charAt(body.length() - 1);
+		pending.append(trailing);
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (len > 0) {
+			writePending(cbuf[off]);
+			out.write(cbuf, off, len);
+			lastChar = cbuf[off + len - 1];
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		if (len > 0) {
+			writePending(str.charAt(off));
+			out.write(str, off, len);
+			lastChar = str.charAt(off + len - 1);
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Drops whitespace left at the end of the block. The target writer is not closed.
+	 */
+	public void finish() {
+		pending.setLength(0);
+	}
+
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	private void writePending(char next) throws IOException {
+		if (pending.length() == 0) {
+			return;
+		}
+
+		boolean drop = lastChar == 0
+				|| (removeIntertagSpaces && lastChar == '>' && next == '<')
+				|| (removeMultiSpaces && (Character.isWhitespace(lastChar) || Character.isWhitespace(next)));
+
+		if (!drop) {
+			if (removeMultiSpaces && pending.length() > 1) {
+				out.write(' ');
+			} else {
+				out.write(pending.toString());
+			}
+		}
+		pending.setLength(0);
+	}
+}
@@ -0,0 +1,99 @@
+package com.googlecode.jspcompressor.velocity;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.resource.ContentResource;
+
+import com.googlecode.jspcompressor.compressor.CompressorWarmup;
+
+/**
+ * Starts compressor warm-up on a background thread the first time one of the compressor directives
+ * is initialized by a Velocity runtime. Warm-up is disabled unless these runtime properties are set:
+ * <ul>
+ * <li><code>jspcompressor.warmup.iterations</code> - number of times each sample page is compressed,
+ * default is <code>0</code> which disables warm-up</li>
+ * <li><code>jspcompressor.warmup.templates</code> - comma separated list of resource names of pages
+ * to compress, loaded through the configured resource loaders. A built-in sample page is used if none are given.</li>
+ * </ul>
+ *
+ * <p>The {@link CompressorWarmup} is stored as the {@link #WARMUP_ATTRIBUTE} application attribute
+ * of the runtime, available through <code>VelocityEngine.getApplicationAttribute()</code>.
+ */
+public class VelocityWarmup {
+
+	/**
+	 * Name of the runtime application attribute holding the {@link CompressorWarmup}.
+	 */
+	public static final String WARMUP_ATTRIBUTE = "com.googlecode.jspcompressor.warmup";
+
+	private VelocityWarmup() {
+	}
+
+	/**
+	 * Starts warm-up for the given runtime unless it is disabled or has already been started.
+	 *
+	 * @param rs Velocity runtime
+	 */
+	public static void start(RuntimeServices rs) {
+		if (rs.getApplicationAttribute(WARMUP_ATTRIBUTE) != null) {
+			return;
+		}
+
+		int iterations = rs.getInt("jspcompressor.warmup.iterations", 0);
+		if (iterations <= 0) {
+			return;
+		}
+
+		final CompressorWarmup warmup = new CompressorWarmup(iterations);
+		synchronized (rs) {
+			if (rs.getApplicationAttribute(WARMUP_ATTRIBUTE) != null) {
+				return;
+			}
+			rs.setApplicationAttribute(WARMUP_ATTRIBUTE, warmup);
+		}
+
+		final Log log = rs.getLog();
+
+		String templates = rs.getString("jspcompressor.warmup.templates");
+		if (templates != null) {
+			for (String name : templates.split(",")) {
+				name = name.trim();
+				if (name.length() == 0) {
+					continue;
+				}
+
+				try {
+					ContentResource resource = rs.getContent(name);
+					warmup.addPage(String.valueOf(resource.getData()));
+				} catch (Exception e) {
+					log.warn("Failed to load warm-up template " + name, e);
+				}
+			}
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				warmup.run();
+				log.info("Compressor warm-up finished in " + warmup.getElapsedTime() + " ms"
+						+ (warmup.getFailed() > 0 ? ", " + warmup.getFailed() + " compressions failed" : ""));
+			}
+		}, "jspcompressor-warmup");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+}
@@ -15,7 +15,6 @@ package com.googlecode.jspcompressor.velocity;
  */
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
 
 import org.apache.velocity.context.InternalContextAdapter;
@@ -28,11 +27,16 @@ import org.apache.velocity.runtime.directive.Directive;
 import org.apache.velocity.runtime.log.Log;
 import org.apache.velocity.runtime.parser.node.Node;
 
+import com.googlecode.jspcompressor.compressor.CompressingWriter;
+import com.googlecode.jspcompressor.compressor.Compressor;
+import com.googlecode.jspcompressor.compressor.CompressorRegistry;
 import com.googlecode.jspcompressor.compressor.XmlCompressor;
 
 /**
  * Velocity directive that compresses an XML content within #compressXml ... #end block.
- * Compression parameters are set by default.
+ * Compression parameters are set by default. They are read from <code>userdirective.compressXml.*</code>
+ * runtime properties and can be overridden for a single block with arguments such as
+ * <code>#compressXml("removeComments=false")</code>.
  * 
  * @see XmlCompressor
  * 
@@ -40,9 +44,15 @@ import com.googlecode.jspcompressor.compressor.XmlCompressor;
  */
 public class XmlCompressorDirective extends Directive {
 	
-	private static final XmlCompressor xmlCompressor = new XmlCompressor();
+	//shared with every block configured the same way, never reconfigured once registered
+	private Compressor xmlCompressor;
+	
+	//cut markers would change the output, content is written out when the buffer fills up instead
+	private static final String[] NO_FLUSH_MARKERS = new String[0];
 	
 	private Log log;
+	
+	private int maxBufferSize = 8192;
 
 	public String getName() {
 		return "compressXml";
@@ -55,30 +65,46 @@ public class XmlCompressorDirective extends Directive {
 	@Override
 	public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
 		super.init(rs, context, node);
+		VelocityWarmup.start(rs);
 		log = rs.getLog();
+		maxBufferSize = rs.getInt("userdirective.compressXml.maxBufferSize", 8192);
+		
+		//resolve the compressor for these settings, blocks with the same settings share one instance
+		DirectiveSettings settings = new DirectiveSettings(rs, "compressXml", context, node);
+		XmlCompressor configured = new XmlCompressor();
+		configured.setEnabled(settings.getBoolean("enabled", true));
+		configured.setRemoveComments(settings.getBoolean("removeComments", true));
+		configured.setRemoveIntertagSpaces(settings.getBoolean("removeIntertagSpaces", true));
+		settings.checkArguments();
 		
-		//set compressor properties
-		xmlCompressor.setEnabled(rs.getBoolean("userdirective.compressXml.enabled", true));
-		xmlCompressor.setRemoveComments(rs.getBoolean("userdirective.compressXml.removeComments", true));
-		xmlCompressor.setRemoveIntertagSpaces(rs.getBoolean("userdirective.compressXml.removeIntertagSpaces", true));
+		String key = "xml:" + configured.isEnabled() + ":" + configured.isRemoveComments() 
+				+ ":" + configured.isRemoveIntertagSpaces();
+		CompressorRegistry registry = DirectiveSettings.getRegistry(rs);
+		xmlCompressor = registry.get(key);
+		if (xmlCompressor == null) {
+			xmlCompressor = registry.register(key, configured);
+		}
 	}
 
     public boolean render(InternalContextAdapter context, Writer writer, Node node) 
     		throws IOException, ResourceNotFoundException, ParseErrorException, MethodInvocationException {
     	
-    	//render content
-    	StringWriter content = new StringWriter();
-		node.jjtGetChild(0).render(context, content);
-		
-		//compress
+    	//render content straight into the compressor, which writes out compressed content as it becomes safe to
+    	CompressingWriter content = new CompressingWriter(writer, xmlCompressor);
+    	content.setFlushMarkers(NO_FLUSH_MARKERS);
+    	content.setMaxBufferSize(maxBufferSize);
+    	
 		try {
-			writer.write(xmlCompressor.compress(content.toString()));
-		} catch (Exception e) {
-			writer.write(content.toString());
-			String msg = "Failed to compress content: "+content.toString();
-            log.error(msg, e);
-            throw new RuntimeException(msg, e);
-            
+			DirectiveSettings.getBody(node).render(context, content);
+			content.finish();
+		} catch (IOException e) {
+			if (content.getFailure() == null) {
+				throw e;
+			}
+			//the content that failed to compress has been written as is
+			String msg = "Failed to compress content";
+            log.error(msg, content.getFailure());
+            throw new RuntimeException(msg, content.getFailure());
 		}
 		return true;
     	